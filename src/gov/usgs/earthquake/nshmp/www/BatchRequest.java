@@ -0,0 +1,159 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.common.base.Splitter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reader of the rows of a batch (POST) request. Rows may be supplied as CSV,
+ * with a header row naming each column, or as a JSON array of flat objects.
+ * Blank lines and lines starting with '#' are skipped in CSV. Keys are case
+ * insensitive and are returned in lower case; values are returned as strings.
+ *
+ * <p>The number of rows in a request is limited by the system property
+ * 'maxBatchSize' [default: 100000].
+ */
+final class BatchRequest {
+
+  private static final int MAX_BATCH_SIZE = Integer.getInteger("maxBatchSize", 100000);
+
+  private static final Splitter CSV_SPLITTER = Splitter.on(',').trimResults();
+
+  private BatchRequest() {}
+
+  /**
+   * Read the rows of a request body. JSON is expected if the request content
+   * type is JSON or the body starts with '['.
+   *
+   * @param request to read
+   * @throws IllegalArgumentException if the body is empty, malformed, or too
+   *         large
+   */
+  static List<Map<String, String>> readRows(HttpServletRequest request) throws IOException {
+    BufferedReader reader = request.getReader();
+    String contentType = request.getContentType();
+    boolean json = contentType != null && contentType.toLowerCase().contains("json");
+    if (!json) {
+      reader.mark(1024);
+      int c;
+      do {
+        c = reader.read();
+      } while (c != -1 && Character.isWhitespace(c));
+      json = (c == '[');
+      reader.reset();
+    }
+    List<Map<String, String>> rows = json ? readJson(reader) : readCsv(reader);
+    checkArgument(!rows.isEmpty(), "Post data is empty");
+    return rows;
+  }
+
+  private static List<Map<String, String>> readCsv(BufferedReader reader) throws IOException {
+    List<Map<String, String>> rows = new ArrayList<>();
+    List<String> keys = null;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.trim().isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      List<String> values = CSV_SPLITTER.splitToList(line);
+      if (keys == null) {
+        keys = new ArrayList<>();
+        for (String key : values) {
+          keys.add(key.toLowerCase());
+        }
+        continue;
+      }
+      checkArgument(
+          values.size() == keys.size(),
+          "Row %s has %s values; expected %s",
+          rows.size() + 1, values.size(), keys.size());
+      Map<String, String> row = new HashMap<>();
+      for (int i = 0; i < keys.size(); i++) {
+        if (!values.get(i).isEmpty()) {
+          row.put(keys.get(i), values.get(i));
+        }
+      }
+      add(rows, row);
+    }
+    return rows;
+  }
+
+  private static List<Map<String, String>> readJson(BufferedReader reader) throws IOException {
+    List<Map<String, String>> rows = new ArrayList<>();
+    try (JsonReader json = new JsonReader(reader)) {
+      json.beginArray();
+      while (json.hasNext()) {
+        Map<String, String> row = new HashMap<>();
+        json.beginObject();
+        while (json.hasNext()) {
+          String key = json.nextName().toLowerCase();
+          JsonToken token = json.peek();
+          if (token == JsonToken.NULL) {
+            json.nextNull();
+          } else if (token == JsonToken.BOOLEAN) {
+            row.put(key, String.valueOf(json.nextBoolean()));
+          } else {
+            row.put(key, json.nextString());
+          }
+        }
+        json.endObject();
+        add(rows, row);
+      }
+      json.endArray();
+    } catch (IllegalStateException e) {
+      throw new IllegalArgumentException("Malformed JSON post data", e);
+    }
+    return rows;
+  }
+
+  private static void add(List<Map<String, String>> rows, Map<String, String> row) {
+    checkArgument(
+        rows.size() < MAX_BATCH_SIZE,
+        "Batch requests are limited to %s rows",
+        MAX_BATCH_SIZE);
+    rows.add(row);
+  }
+
+  /**
+   * Return a required value of a row.
+   *
+   * @param rows of request
+   * @param index of row
+   * @param key of value
+   * @throws IllegalArgumentException if the value is missing
+   */
+  static String value(List<Map<String, String>> rows, int index, String key) {
+    String value = rows.get(index).get(key);
+    checkArgument(value != null, "Row %s is missing '%s'", index + 1, key);
+    return value;
+  }
+
+  /**
+   * Return a required value of a row as a double.
+   *
+   * @param rows of request
+   * @param index of row
+   * @param key of value
+   * @throws IllegalArgumentException if the value is missing or not a number
+   */
+  static double doubleValue(List<Map<String, String>> rows, int index, String key) {
+    String value = value(rows, index, key);
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+          String.format("Row %s: '%s' [%s] is not a number", index + 1, key, value), e);
+    }
+  }
+}
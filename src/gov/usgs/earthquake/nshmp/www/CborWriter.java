@@ -0,0 +1,195 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Minimal CBOR (RFC 7049) encoder for JSON trees. An encoded response has the
+ * same structure as its JSON form, but non-empty arrays of numbers, which make
+ * up the bulk of hazard and ground motion responses, are written as RFC 8746
+ * typed arrays of big-endian float64 values that clients may copy directly
+ * into a double array; a single-element array is no exception. Other numbers
+ * are written as integers where integral and as float64 otherwise.
+ *
+ * <p>Large responses may also be written incrementally, much like a
+ * {@code JsonWriter}, using an indefinite-length array for a sequence of
+ * elements of unknown size.
+ */
+final class CborWriter {
+
+  /* Major types. */
+  private static final int UNSIGNED = 0 << 5;
+  private static final int NEGATIVE = 1 << 5;
+  private static final int BYTES = 2 << 5;
+  private static final int TEXT = 3 << 5;
+  private static final int ARRAY = 4 << 5;
+  private static final int MAP = 5 << 5;
+  private static final int TAG = 6 << 5;
+
+  /* Simple values. */
+  private static final int FALSE = 0xf4;
+  private static final int TRUE = 0xf5;
+  private static final int NULL = 0xf6;
+  private static final int FLOAT64 = 0xfb;
+
+  /* Indefinite-length array start and terminating 'break'. */
+  private static final int ARRAY_START = ARRAY | 31;
+  private static final int BREAK = 0xff;
+
+  /* RFC 8746 typed array tag: float64, big endian. */
+  private static final int FLOAT64_ARRAY = 82;
+
+  /* Largest integer exactly representable as a double. */
+  private static final long MAX_INTEGER = 1L << 53;
+
+  private final DataOutputStream out;
+
+  /**
+   * Create a writer for incremental output to the supplied stream.
+   *
+   * @param out stream to write to
+   */
+  CborWriter(OutputStream out) {
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+  }
+
+  /**
+   * Encode a JSON tree to the supplied stream. The stream is flushed but not
+   * closed.
+   *
+   * @param element to encode
+   * @param out stream to write to
+   */
+  static void write(JsonElement element, OutputStream out) throws IOException {
+    CborWriter writer = new CborWriter(out);
+    writer.writeElement(element);
+    writer.out.flush();
+  }
+
+  /* Begin a map with the supplied number of entries. */
+  void beginMap(int size) throws IOException {
+    writeHead(MAP, size);
+  }
+
+  /* Write a map key. */
+  void name(String name) throws IOException {
+    writeText(name);
+  }
+
+  /* Write a map value or array element. */
+  void value(JsonElement element) throws IOException {
+    writeElement(element);
+  }
+
+  /* Begin an indefinite-length array. */
+  void beginArray() throws IOException {
+    out.write(ARRAY_START);
+  }
+
+  /* End an indefinite-length array. */
+  void endArray() throws IOException {
+    out.write(BREAK);
+  }
+
+  /* Flush buffered output to the underlying stream. */
+  void flush() throws IOException {
+    out.flush();
+  }
+
+  private void writeElement(JsonElement element) throws IOException {
+    if (element.isJsonNull()) {
+      out.write(NULL);
+    } else if (element.isJsonObject()) {
+      Set<Entry<String, JsonElement>> entries = element.getAsJsonObject().entrySet();
+      writeHead(MAP, entries.size());
+      for (Entry<String, JsonElement> entry : entries) {
+        writeText(entry.getKey());
+        writeElement(entry.getValue());
+      }
+    } else if (element.isJsonArray()) {
+      writeArray(element.getAsJsonArray());
+    } else {
+      JsonPrimitive primitive = element.getAsJsonPrimitive();
+      if (primitive.isBoolean()) {
+        out.write(primitive.getAsBoolean() ? TRUE : FALSE);
+      } else if (primitive.isNumber()) {
+        writeNumber(primitive.getAsDouble());
+      } else {
+        writeText(primitive.getAsString());
+      }
+    }
+  }
+
+  private void writeArray(JsonArray array) throws IOException {
+    if (array.size() > 0 && isNumeric(array)) {
+      writeHead(TAG, FLOAT64_ARRAY);
+      writeHead(BYTES, (long) array.size() * Double.BYTES);
+      for (JsonElement element : array) {
+        out.writeDouble(element.getAsDouble());
+      }
+      return;
+    }
+    writeHead(ARRAY, array.size());
+    for (JsonElement element : array) {
+      writeElement(element);
+    }
+  }
+
+  private static boolean isNumeric(JsonArray array) {
+    for (JsonElement element : array) {
+      if (!element.isJsonPrimitive() || !element.getAsJsonPrimitive().isNumber()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void writeNumber(double value) throws IOException {
+    long integer = (long) value;
+    if (integer == value && Math.abs(integer) <= MAX_INTEGER) {
+      if (integer >= 0) {
+        writeHead(UNSIGNED, integer);
+      } else {
+        writeHead(NEGATIVE, -1 - integer);
+      }
+      return;
+    }
+    out.write(FLOAT64);
+    out.writeDouble(value);
+  }
+
+  private void writeText(String text) throws IOException {
+    byte[] bytes = text.getBytes(UTF_8);
+    writeHead(TEXT, bytes.length);
+    out.write(bytes);
+  }
+
+  /* Initial byte and argument, using the shortest encoding. */
+  private void writeHead(int majorType, long value) throws IOException {
+    if (value < 24) {
+      out.write(majorType | (int) value);
+    } else if (value < 1L << 8) {
+      out.write(majorType | 24);
+      out.write((int) value);
+    } else if (value < 1L << 16) {
+      out.write(majorType | 25);
+      out.writeShort((int) value);
+    } else if (value < 1L << 32) {
+      out.write(majorType | 26);
+      out.writeInt((int) value);
+    } else {
+      out.write(majorType | 27);
+      out.writeLong(value);
+    }
+  }
+}
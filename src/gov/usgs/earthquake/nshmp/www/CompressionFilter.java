@@ -0,0 +1,403 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Response compression filter. Responses are gzip or deflate encoded, as
+ * negotiated with the {@code Accept-Encoding} request header, and compressed
+ * as they are written rather than once complete. Output is buffered only until
+ * it reaches a minimum size; smaller responses, and responses of content types
+ * that are not compressible, are written unchanged.
+ *
+ * <p>Init parameters:<ul>
+ *
+ * <li>{@code minSize}: the minimum response size, in bytes, to compress
+ * [default: 1024]</li>
+ *
+ * <li>{@code level}: the deflate compression level, 1 (fastest) to 9 (best)
+ * [default: 4]</li>
+ *
+ * <li>{@code mimeTypes}: a comma-delimited list of compressible content types
+ * [default: JSON, NDJSON, CBOR, CSV, and common text types]</li></ul>
+ */
+public final class CompressionFilter implements Filter {
+
+  /*
+   * Developer notes:
+   *
+   * Most responses are written asynchronously, after doFilter() has returned;
+   * see ServletUtil.writeResult(). Compressed output must be finished, writing
+   * any remaining deflate output and the gzip trailer, before the container
+   * finishes the response. ServletUtil does so by calling finish() before
+   * completing an async request; a listener finishes any others on completion.
+   *
+   * Compressing streams sync-flush when flushed so that streamed results reach
+   * clients promptly, at some cost in compression.
+   */
+
+  private static final String MIN_SIZE_KEY = "minSize";
+  private static final String LEVEL_KEY = "level";
+  private static final String MIME_TYPES_KEY = "mimeTypes";
+
+  private static final int MIN_SIZE = 1024;
+  private static final int LEVEL = 4;
+  private static final String MIME_TYPES = "application/json,application/cbor," +
+      "application/x-ndjson,application/javascript,text/csv,text/plain,text/html,text/css";
+
+  private int minSize;
+  private int level;
+  private Set<String> mimeTypes;
+
+  @Override
+  public void init(FilterConfig config) {
+    minSize = Integer.parseInt(initParameter(config, MIN_SIZE_KEY, String.valueOf(MIN_SIZE)));
+    level = Integer.parseInt(initParameter(config, LEVEL_KEY, String.valueOf(LEVEL)));
+    checkArgument(minSize >= 0, "Invalid %s [%s]", MIN_SIZE_KEY, minSize);
+    checkArgument(level >= 1 && level <= 9, "Invalid %s [%s]", LEVEL_KEY, level);
+    mimeTypes = ImmutableSet.copyOf(Splitter.on(',')
+        .trimResults()
+        .omitEmptyStrings()
+        .split(initParameter(config, MIME_TYPES_KEY, MIME_TYPES).toLowerCase()));
+  }
+
+  private static String initParameter(FilterConfig config, String key, String defaultValue) {
+    String value = config.getInitParameter(key);
+    return (value == null) ? defaultValue : value;
+  }
+
+  @Override
+  public void destroy() {}
+
+  @Override
+  public void doFilter(
+      ServletRequest request,
+      ServletResponse response,
+      FilterChain chain)
+      throws IOException, ServletException {
+
+    if (!(request instanceof HttpServletRequest)) {
+      chain.doFilter(request, response);
+      return;
+    }
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    HttpServletResponse httpResponse = (HttpServletResponse) response;
+
+    httpResponse.addHeader("Vary", "Accept-Encoding");
+    Encoding encoding = Encoding.negotiate(httpRequest.getHeader("Accept-Encoding"));
+    if (encoding == null || httpRequest.getMethod().equals("HEAD")) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    CompressingResponse compressingResponse = new CompressingResponse(httpResponse, encoding);
+    chain.doFilter(request, compressingResponse);
+
+    if (request.isAsyncStarted()) {
+      request.getAsyncContext().addListener(new AsyncListener() {
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+          compressingResponse.finish();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {}
+
+        @Override
+        public void onError(AsyncEvent event) {}
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {}
+      });
+    } else {
+      compressingResponse.finish();
+    }
+  }
+
+  /**
+   * Finish compressed output, if the supplied response, or a response it
+   * wraps, is being compressed. This should be called once an asynchronous
+   * response has been written and before the request is completed.
+   *
+   * @param response to finish
+   */
+  static void finish(ServletResponse response) throws IOException {
+    while (response instanceof ServletResponseWrapper) {
+      if (response instanceof CompressingResponse) {
+        ((CompressingResponse) response).finish();
+        return;
+      }
+      response = ((ServletResponseWrapper) response).getResponse();
+    }
+  }
+
+  private enum Encoding {
+    GZIP,
+    DEFLATE;
+
+    private final String token = name().toLowerCase();
+
+    /* Preferred supported encoding, or null if none is acceptable. */
+    static Encoding negotiate(String acceptEncoding) {
+      if (acceptEncoding == null) {
+        return null;
+      }
+      boolean deflate = false;
+      for (String coding : Splitter.on(',').trimResults().split(acceptEncoding)) {
+        List<String> parts = Splitter.on(';').trimResults().splitToList(coding);
+        String name = parts.get(0).toLowerCase();
+        if (parts.contains("q=0") || parts.contains("q=0.0")) {
+          continue;
+        }
+        if (name.equals(GZIP.token) || name.equals("*")) {
+          return GZIP;
+        }
+        deflate |= name.equals(DEFLATE.token);
+      }
+      return deflate ? DEFLATE : null;
+    }
+
+    /* A compressing stream that sync-flushes when flushed. */
+    DeflaterOutputStream stream(OutputStream out, int level) throws IOException {
+      if (this == GZIP) {
+        return new GZIPOutputStream(out, BUFFER_SIZE, true) {
+          {
+            def.setLevel(level);
+          }
+        };
+      }
+      return new DeflaterOutputStream(out, new Deflater(level), BUFFER_SIZE, true) {
+        @Override
+        public void close() throws IOException {
+          super.close();
+          def.end();
+        }
+      };
+    }
+  }
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final class CompressingResponse extends HttpServletResponseWrapper {
+
+    private final HttpServletResponse response;
+    private final Encoding encoding;
+
+    private CompressingStream stream;
+    private PrintWriter writer;
+    private long contentLength = -1;
+
+    CompressingResponse(HttpServletResponse response, Encoding encoding) {
+      super(response);
+      this.response = response;
+      this.encoding = encoding;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+      checkState(writer == null, "getWriter() has already been called");
+      return stream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        checkState(stream == null, "getOutputStream() has already been called");
+        writer = new PrintWriter(new OutputStreamWriter(stream(), getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    private CompressingStream stream() {
+      if (stream == null) {
+        stream = new CompressingStream(this);
+      }
+      return stream;
+    }
+
+    /* Content length is only known, and set, if output is not compressed. */
+    @Override
+    public void setContentLength(int length) {
+      setContentLengthLong(length);
+    }
+
+    @Override
+    public void setContentLengthLong(long length) {
+      contentLength = length;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      } else if (stream != null) {
+        stream.flush();
+      }
+      response.flushBuffer();
+    }
+
+    @Override
+    public void resetBuffer() {
+      if (stream != null) {
+        stream.resetBuffer();
+      }
+      super.resetBuffer();
+    }
+
+    @Override
+    public void reset() {
+      if (stream != null) {
+        stream.resetBuffer();
+      }
+      super.reset();
+    }
+
+    void finish() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+      if (stream != null) {
+        stream.finish();
+      }
+    }
+  }
+
+  /*
+   * Buffers output until minSize is reached, and then either compresses or
+   * passes output through, depending on the response content type.
+   */
+  private final class CompressingStream extends ServletOutputStream {
+
+    private final CompressingResponse response;
+
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream(minSize);
+    private OutputStream out;
+    private boolean finished;
+
+    CompressingStream(CompressingResponse response) {
+      this.response = response;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      checkState(!finished, "Response has been finished");
+      if (out != null) {
+        out.write(b, off, len);
+        return;
+      }
+      buffer.write(b, off, len);
+      if (buffer.size() >= minSize) {
+        start(true);
+      }
+    }
+
+    /* Buffered output is not flushed until minSize is reached. */
+    @Override
+    public void flush() throws IOException {
+      if (out != null) {
+        out.flush();
+      }
+    }
+
+    void resetBuffer() {
+      checkState(out == null, "Response has been committed");
+      buffer.reset();
+    }
+
+    void finish() throws IOException {
+      if (finished) {
+        return;
+      }
+      if (out == null) {
+        start(false);
+      }
+      finished = true;
+      if (out instanceof DeflaterOutputStream) {
+        out.close();
+      } else {
+        out.flush();
+      }
+    }
+
+    private void start(boolean compress) throws IOException {
+      HttpServletResponse wrapped = response.response;
+      if (compress && isCompressible(wrapped)) {
+        wrapped.setHeader("Content-Encoding", response.encoding.token);
+        out = response.encoding.stream(wrapped.getOutputStream(), level);
+      } else {
+        if (response.contentLength >= 0) {
+          wrapped.setContentLengthLong(response.contentLength);
+        }
+        out = wrapped.getOutputStream();
+      }
+      buffer.writeTo(out);
+      buffer = null;
+    }
+
+    private boolean isCompressible(HttpServletResponse response) {
+      String contentType = response.getContentType();
+      /* Content-Range refers to unencoded content; see JobService. */
+      if (contentType == null ||
+          response.containsHeader("Content-Encoding") ||
+          response.getStatus() == HttpServletResponse.SC_PARTIAL_CONTENT) {
+        return false;
+      }
+      int paramIndex = contentType.indexOf(';');
+      String mimeType = (paramIndex < 0) ? contentType : contentType.substring(0, paramIndex);
+      return mimeTypes.contains(mimeType.trim().toLowerCase());
+    }
+
+    /*
+     * Non-blocking output is not supported, and no servlet in this application
+     * uses it. It can not simply be delegated to the wrapped stream: a single
+     * write to a compressing stream may produce several writes to the wrapped
+     * stream, any of which but the first may find it not ready. Servlets that
+     * need non-blocking output must be excluded from the filter mapping.
+     */
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {
+      throw new UnsupportedOperationException(
+          "Non-blocking output is not supported by CompressionFilter");
+    }
+  }
+}
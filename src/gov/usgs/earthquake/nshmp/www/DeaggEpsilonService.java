@@ -1,28 +1,37 @@
 package gov.usgs.earthquake.nshmp.www;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static gov.usgs.earthquake.nshmp.www.ServletUtil.GSON;
 import static gov.usgs.earthquake.nshmp.www.ServletUtil.MODEL_CACHE_CONTEXT_ID;
 import static gov.usgs.earthquake.nshmp.www.ServletUtil.emptyRequest;
 import static gov.usgs.earthquake.nshmp.www.Util.readBoolean;
 import static gov.usgs.earthquake.nshmp.www.Util.readDouble;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.BASIN;
+import static gov.usgs.earthquake.nshmp.www.Util.Key.IMT;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.LATITUDE;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.LONGITUDE;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.MODEL;
+import static gov.usgs.earthquake.nshmp.www.Util.Key.RETURNPERIOD;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.VS30;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.net.URL;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -32,6 +41,11 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
 
 import gov.usgs.earthquake.nshmp.calc.CalcConfig;
 import gov.usgs.earthquake.nshmp.calc.Deaggregation;
@@ -41,8 +55,10 @@ import gov.usgs.earthquake.nshmp.calc.Site;
 import gov.usgs.earthquake.nshmp.eq.model.HazardModel;
 import gov.usgs.earthquake.nshmp.geo.Location;
 import gov.usgs.earthquake.nshmp.gmm.Imt;
+import gov.usgs.earthquake.nshmp.www.ServletUtil.ResultWriter;
 import gov.usgs.earthquake.nshmp.www.ServletUtil.TimedTask;
 import gov.usgs.earthquake.nshmp.www.ServletUtil.Timer;
+import gov.usgs.earthquake.nshmp.www.TaskScheduler.Lane;
 import gov.usgs.earthquake.nshmp.www.meta.Metadata;
 import gov.usgs.earthquake.nshmp.www.meta.Status;
 
@@ -55,10 +71,26 @@ import gov.usgs.earthquake.nshmp.www.meta.Status;
 @WebServlet(
     name = "Epsilon Deaggregation Service (experimental)",
     description = "USGS NSHMP Hazard Deaggregator",
+    asyncSupported = true,
     urlPatterns = { "/deagg-epsilon" })
 public final class DeaggEpsilonService extends NshmpServlet {
 
-  /* Developer notes: See HazardService. */
+  /*
+   * Developer notes: See HazardService.
+   *
+   * Batch requests POST a list of deaggregations, as CSV with a header row or
+   * as a JSON array of objects, with 'longitude', 'latitude', 'imt', either
+   * 'iml' or 'returnperiod', and optionally 'vs30', which may instead be
+   * supplied as a query parameter; 'model' and 'basin' query parameters apply
+   * to all rows. Rows are grouped by site (location and vs30) and each site is
+   * a single task: hazard is computed once for all of a site's IMTs, and
+   * return period deaggregations are computed once per return period. Sites
+   * are run a bounded window at a time (see TaskStream) and results, one line
+   * of compact deaggregation JSON per row, are streamed as NDJSON as each site
+   * completes. Results include the index of the row in the request.
+   */
+
+  private static final String IML_KEY = "iml";
 
   private LoadingCache<Model, HazardModel> modelCache;
   private URL basinUrl;
@@ -109,11 +141,76 @@ public final class DeaggEpsilonService extends NshmpServlet {
 
     try {
       RequestData requestData = buildRequestData(request);
-
-      /* Submit as task to job executor */
       Deagg2Task task = new Deagg2Task(urlHelper.url, getServletContext(), requestData);
-      Result result = ServletUtil.TASK_EXECUTOR.submit(task).get();
-      GSON.toJson(result, response.getWriter());
+      if (JobQueue.isJobRequest(request)) {
+        ServletUtil.JOB_QUEUE.submit(request, response, urlHelper, Lane.DEAGG, task);
+        return;
+      }
+      ResultWriter<Result> writer = ServletUtil.resultWriter(Util.readFormat(request), null);
+
+      /* Submit as task to job executor; joins identical in-flight requests */
+      ListenableFuture<Result> result = ServletUtil.TASK_SCHEDULER.submit(
+          Lane.DEAGG,
+          requestData,
+          task);
+      ServletUtil.writeResult(
+          request.startAsync(request, response),
+          result,
+          urlHelper.url,
+          writer);
+
+    } catch (Exception e) {
+      String message = Metadata.errorMessage(urlHelper.url, e, false);
+      response.getWriter().print(message);
+      getServletContext().log(urlHelper.url, e);
+    }
+  }
+
+  @Override
+  protected void doPost(
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws ServletException, IOException {
+
+    UrlHelper urlHelper = urlHelper(request, response);
+
+    try {
+      List<Model> models = readModelsFromQuery(request);
+      boolean basin = Boolean.valueOf(request.getParameter(BASIN.toString()));
+      String defaultVs30 = request.getParameter(VS30.toString());
+      List<Map<String, String>> rows = BatchRequest.readRows(request);
+
+      /* Group rows by site, in order of first appearance */
+      Map<List<Double>, BatchSite> siteMap = new LinkedHashMap<>();
+      for (int i = 0; i < rows.size(); i++) {
+        double lon = BatchRequest.doubleValue(rows, i, LONGITUDE.toString());
+        double lat = BatchRequest.doubleValue(rows, i, LATITUDE.toString());
+        double vs30 = (defaultVs30 != null && !rows.get(i).containsKey(VS30.toString()))
+            ? Double.valueOf(defaultVs30)
+            : BatchRequest.doubleValue(rows, i, VS30.toString());
+        Imt imt = Imt.valueOf(BatchRequest.value(rows, i, IMT.toString()));
+        boolean iml = rows.get(i).containsKey(IML_KEY);
+        BatchRow row = new BatchRow(
+            i,
+            imt,
+            iml ? BatchRequest.doubleValue(rows, i, IML_KEY) : Double.NaN,
+            iml ? Double.NaN : BatchRequest.doubleValue(rows, i, RETURNPERIOD.toString()));
+        siteMap.computeIfAbsent(
+            Arrays.asList(lon, lat, vs30),
+            key -> new BatchSite(models, lon, lat, vs30, basin))
+            .rows.add(row);
+      }
+      List<BatchSite> sites = ImmutableList.copyOf(siteMap.values());
+
+      response.setContentType(ServletUtil.NDJSON_CONTENT_TYPE);
+      TaskStream.respond(
+          request,
+          response,
+          urlHelper,
+          Lane.DEAGG,
+          sites.size(),
+          i -> new BatchTask(urlHelper.url, getServletContext(), sites.get(i)),
+          new BatchWriter(sites));
 
     } catch (Exception e) {
       String message = Metadata.errorMessage(urlHelper.url, e, false);
@@ -183,15 +280,21 @@ public final class DeaggEpsilonService extends NshmpServlet {
     }
 
     @Override
-    Result calc() throws Exception {
-      Deaggregation deagg = calcDeagg(data);
+    Result attach(Result result) {
+      Object server = Metadata.serverData(ServletUtil.THREAD_COUNT, timer);
+      return new Result(url, server, result.response);
+    }
 
-      return new Result.Builder()
+    @Override
+    Result calc() throws Exception {
+      Result.Builder builder = new Result.Builder()
           .requestData(data)
           .url(url)
-          .timer(timer)
-          .deagg(deagg)
-          .build();
+          .timer(timer);
+      JsonElement response = ServletUtil.RESULT_STORE.get(
+          data.storeKey(),
+          () -> builder.deagg(calcDeagg(data, executor)).responses());
+      return builder.build(response);
     }
   }
 
@@ -206,31 +309,238 @@ public final class DeaggEpsilonService extends NshmpServlet {
    * Site has logic for parsing the basin service response, which perhaps it
    * shouldn't. TODO is it worth decomposing data objects and services
    */
-  Deaggregation calcDeagg(RequestData data) {
-    Location loc = Location.create(data.latitude, data.longitude);
+  Deaggregation calcDeagg(RequestData data, Executor executor) throws Exception {
+    Hazard hazard = calcHazard(
+        data.models,
+        data.longitude,
+        data.latitude,
+        data.imtImls.keySet(),
+        data.vs30,
+        data.basin,
+        executor);
+    return Deaggregation.atImls(hazard, data.imtImls, executor);
+  }
 
-    Site site = Site.builder()
-        .location(Location.create(data.latitude, data.longitude))
-        .basinDataProvider(data.basin ? this.basinUrl : null)
-        .vs30(data.vs30)
-        .build();
+  private Hazard calcHazard(
+      List<Model> models,
+      double longitude,
+      double latitude,
+      Set<Imt> imts,
+      double vs30,
+      boolean basin,
+      Executor executor) throws Exception {
+
+    /*
+     * Hazard is independent of the ground motions of a deaggregation and may be
+     * reused. The site, which may require a call to the basin service, is only
+     * built if hazard must be computed.
+     */
+    String hazardKey = ResultStore.key(
+        "hazard:deagg-epsilon",
+        models,
+        latitude,
+        longitude,
+        Sets.immutableEnumSet(imts),
+        vs30,
+        basin);
+    return ServletUtil.DEAGG_HAZARD_CACHE.get(hazardKey, () -> {
+      Site site = Site.builder()
+          .location(Location.create(latitude, longitude))
+          .basinDataProvider(basin ? this.basinUrl : null)
+          .vs30(vs30)
+          .build();
+      /* Models are evaluated concurrently; see ServletUtil.calcAll(). */
+      List<Callable<Hazard>> calcs = new ArrayList<>(models.size());
+      for (Model model : models) {
+        HazardModel hazardModel = modelCache.getUnchecked(model);
+        calcs.add(() -> process(hazardModel, site, imts, executor));
+      }
+      List<Hazard> hazards = ServletUtil.calcAll(calcs);
+      return Hazard.merge(hazards.toArray(new Hazard[hazards.size()]));
+    });
+  }
+
+  /* The rows of a batch request at a single site. */
+  private static final class BatchSite {
+
+    final List<Model> models;
+    final double longitude;
+    final double latitude;
+    final double vs30;
+    final boolean basin;
+    final List<BatchRow> rows = new ArrayList<>();
+
+    BatchSite(
+        List<Model> models,
+        double longitude,
+        double latitude,
+        double vs30,
+        boolean basin) {
+
+      this.models = models;
+      this.longitude = longitude;
+      this.latitude = latitude;
+      this.vs30 = vs30;
+      this.basin = basin;
+    }
+  }
+
+  /* A batch request row; one of iml or returnPeriod is NaN. */
+  private static final class BatchRow {
+
+    final int index;
+    final Imt imt;
+    final double iml;
+    final double returnPeriod;
 
-    Hazard[] hazards = new Hazard[data.models.size()];
-    for (int i = 0; i < data.models.size(); i++) {
-      HazardModel model = modelCache.getUnchecked(data.models.get(i));
-      hazards[i] = process(model, site, data.imtImls.keySet());
+    BatchRow(int index, Imt imt, double iml, double returnPeriod) {
+      this.index = index;
+      this.imt = imt;
+      this.iml = iml;
+      this.returnPeriod = returnPeriod;
     }
-    Hazard hazard = Hazard.merge(hazards);
-    return Deaggregation.atImls(hazard, data.imtImls, ServletUtil.CALC_EXECUTOR);
   }
 
-  private static Hazard process(HazardModel model, Site site, Set<Imt> imts) {
+  /* A batch row result; data and εbins are null on error. */
+  private static final class BatchResult {
+
+    final BatchRow row;
+    final Object εbins;
+    final Object data;
+    final String error;
+
+    BatchResult(BatchRow row, Object εbins, Object data, String error) {
+      this.row = row;
+      this.εbins = εbins;
+      this.data = data;
+      this.error = error;
+    }
+  }
+
+  private class BatchTask extends TimedTask<List<BatchResult>> {
+
+    final BatchSite site;
+
+    BatchTask(String url, ServletContext context, BatchSite site) {
+      super(url, context);
+      this.site = site;
+    }
+
+    @Override
+    List<BatchResult> calc() throws Exception {
+      Set<Imt> imts = EnumSet.noneOf(Imt.class);
+      for (BatchRow row : site.rows) {
+        imts.add(row.imt);
+      }
+      Hazard hazard = calcHazard(
+          site.models,
+          site.longitude,
+          site.latitude,
+          imts,
+          site.vs30,
+          site.basin,
+          executor);
+
+      /* A return period deaggregation covers all IMTs of the hazard */
+      Map<Double, Deaggregation> returnPeriodDeaggs = new HashMap<>();
+      List<BatchResult> results = new ArrayList<>(site.rows.size());
+      for (BatchRow row : site.rows) {
+        try {
+          Deaggregation deagg;
+          if (Double.isNaN(row.iml)) {
+            deagg = returnPeriodDeaggs.get(row.returnPeriod);
+            if (deagg == null) {
+              deagg = HazardCalcs.deaggReturnPeriod(hazard, row.returnPeriod, executor);
+              returnPeriodDeaggs.put(row.returnPeriod, deagg);
+            }
+          } else {
+            deagg = Deaggregation.atImls(hazard, ImmutableMap.of(row.imt, row.iml), executor);
+          }
+          results.add(new BatchResult(row, deagg.εBins(), deagg.toJsonCompact(row.imt), null));
+        } catch (RuntimeException e) {
+          results.add(new BatchResult(row, null, null, String.valueOf(e.getMessage())));
+        }
+      }
+      return results;
+    }
+  }
+
+  /* Writes one line of NDJSON per batch row. */
+  private static final class BatchWriter implements TaskStream.Writer<List<BatchResult>> {
+
+    final List<BatchSite> sites;
+
+    BatchWriter(List<BatchSite> sites) {
+      this.sites = sites;
+    }
+
+    @Override
+    public void result(PrintWriter out, int index, List<BatchResult> results)
+        throws IOException {
+
+      for (BatchResult result : results) {
+        JsonWriter json = beginJson(out, sites.get(index), result.row);
+        if (result.error == null) {
+          json.name("εbins");
+          ServletUtil.GSON.toJson(result.εbins, result.εbins.getClass(), json);
+          json.name("data");
+          ServletUtil.GSON.toJson(result.data, result.data.getClass(), json);
+        } else {
+          json.name("error").value(result.error);
+        }
+        endJson(out, json);
+      }
+    }
+
+    @Override
+    public void error(PrintWriter out, int index, String message) throws IOException {
+      BatchSite site = sites.get(index);
+      for (BatchRow row : site.rows) {
+        JsonWriter json = beginJson(out, site, row);
+        json.name("error").value(message);
+        endJson(out, json);
+      }
+    }
+
+    private static JsonWriter beginJson(
+        PrintWriter out,
+        BatchSite site,
+        BatchRow row) throws IOException {
+
+      JsonWriter json = new JsonWriter(out);
+      json.beginObject();
+      json.name("row").value(row.index);
+      json.name("longitude").value(site.longitude);
+      json.name("latitude").value(site.latitude);
+      json.name("vs30").value(site.vs30);
+      json.name("imt").value(row.imt.name());
+      if (Double.isNaN(row.iml)) {
+        json.name("returnperiod").value(row.returnPeriod);
+      } else {
+        json.name(IML_KEY).value(row.iml);
+      }
+      return json;
+    }
+
+    private static void endJson(PrintWriter out, JsonWriter json) throws IOException {
+      json.endObject();
+      json.flush();
+      out.print('\n');
+    }
+  }
+
+  private static Hazard process(
+      HazardModel model,
+      Site site,
+      Set<Imt> imts,
+      Executor executor) {
+
     CalcConfig config = CalcConfig.Builder
         .copyOf(model.config())
         .imts(imts)
         .build();
     // System.out.println(config);
-    return HazardCalcs.hazard(model, config, site, ServletUtil.CALC_EXECUTOR);
+    return HazardCalcs.hazard(model, config, site, executor);
   }
 
   static final class RequestData {
@@ -257,6 +567,41 @@ public final class DeaggEpsilonService extends NshmpServlet {
       this.vs30 = vs30;
       this.basin = basin;
     }
+
+    /* Result store key. */
+    String storeKey() {
+      return ResultStore.key(
+          "deagg-epsilon",
+          models,
+          latitude,
+          longitude,
+          imtImls,
+          vs30,
+          basin);
+    }
+
+    /* See DeaggService2.RequestData. */
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof RequestData)) {
+        return false;
+      }
+      RequestData that = (RequestData) obj;
+      return models.equals(that.models) &&
+          Double.compare(latitude, that.latitude) == 0 &&
+          Double.compare(longitude, that.longitude) == 0 &&
+          imtImls.equals(that.imtImls) &&
+          Double.compare(vs30, that.vs30) == 0 &&
+          basin == that.basin;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(models, latitude, longitude, imtImls, vs30, basin);
+    }
   }
 
   private static final class ResponseData {
@@ -300,9 +645,9 @@ public final class DeaggEpsilonService extends NshmpServlet {
     final String date = ZonedDateTime.now().format(ServletUtil.DATE_FMT);
     final String url;
     final Object server;
-    final List<Response> response;
+    final JsonElement response;
 
-    Result(String url, Object server, List<Response> response) {
+    Result(String url, Object server, JsonElement response) {
       this.url = url;
       this.server = server;
       this.response = response;
@@ -335,7 +680,8 @@ public final class DeaggEpsilonService extends NshmpServlet {
         return this;
       }
 
-      Result build() {
+      /* The deaggregation response, exclusive of request and server metadata. */
+      List<Response> responses() {
         ImmutableList.Builder<Response> responseListBuilder = ImmutableList.builder();
 
         for (Imt imt : request.imtImls.keySet()) {
@@ -345,10 +691,12 @@ public final class DeaggEpsilonService extends NshmpServlet {
           responseListBuilder.add(response);
         }
 
-        List<Response> responseList = responseListBuilder.build();
-        Object server = Metadata.serverData(ServletUtil.THREAD_COUNT, timer);
+        return responseListBuilder.build();
+      }
 
-        return new Result(url, server, responseList);
+      Result build(JsonElement response) {
+        Object server = Metadata.serverData(ServletUtil.THREAD_COUNT, timer);
+        return new Result(url, server, response);
       }
     }
   }
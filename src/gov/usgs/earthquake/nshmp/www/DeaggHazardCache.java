@@ -0,0 +1,103 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import gov.usgs.earthquake.nshmp.calc.Hazard;
+
+/**
+ * Short-lived, weight-bounded cache of the {@code Hazard} objects from which
+ * deaggregations are computed. Users commonly request deaggregations at
+ * several return periods or ground motion levels for the same site in quick
+ * succession; with the hazard retained, follow-up requests only run the
+ * deaggregation step.
+ *
+ * <p>A deaggregation-capable {@code Hazard} retains the ground motions of every
+ * rupture considered and can be very large. The size of the ruptures retained
+ * is not exposed, so each entry is weighed by a nominal size per IMT and the
+ * budget is approximate. Entries therefore also expire shortly after last use
+ * and are softly referenced, so that the garbage collector reclaims them
+ * before memory runs out whatever their actual size.
+ */
+final class DeaggHazardCache {
+
+  private static final long EXPIRY_MINUTES = 10;
+
+  /* Nominal weight, in kilobytes, of the rupture data retained per IMT. */
+  private static final int IMT_WEIGHT = 4 * 1024;
+
+  private final Cache<String, Hazard> cache;
+
+  /**
+   * Create a new cache.
+   *
+   * @param maxBytes the approximate maximum size of all cached hazard
+   */
+  DeaggHazardCache(long maxBytes) {
+    checkArgument(maxBytes >= 0, "maxBytes [%s] may not be negative", maxBytes);
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(maxBytes / 1024)
+        .weigher((String key, Hazard hazard) -> hazard.curves().size() * IMT_WEIGHT)
+        .expireAfterAccess(EXPIRY_MINUTES, TimeUnit.MINUTES)
+        .softValues()
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Return the hazard for a key, computing and caching it with {@code loader}
+   * if absent. Concurrent requests for the same key wait for a single load.
+   * Failed loads are not cached. If a load is abandoned because the request
+   * that started it was cancelled, a waiting request retries with its own
+   * {@code loader} rather than failing.
+   *
+   * @param key identifying the hazard; see
+   *        {@link ResultStore#key(String, java.util.List, Object...)}
+   * @param loader that computes the hazard
+   */
+  Hazard get(String key, Callable<Hazard> loader) throws Exception {
+    while (true) {
+      try {
+        return cache.get(key, loader);
+      } catch (ExecutionException | UncheckedExecutionException e) {
+        Throwable cause = e.getCause();
+        if (abandoned(cause) && !Thread.currentThread().isInterrupted()) {
+          continue;
+        }
+        Throwables.throwIfInstanceOf(cause, Exception.class);
+        Throwables.throwIfUnchecked(cause);
+        throw e;
+      }
+    }
+  }
+
+  /* Failures that indicate a load was cancelled rather than failed. */
+  private static boolean abandoned(Throwable t) {
+    return t instanceof CancellationException ||
+        t instanceof InterruptedException ||
+        t instanceof RejectedExecutionException;
+  }
+
+  long size() {
+    return cache.size();
+  }
+
+  CacheStats stats() {
+    return cache.stats();
+  }
+
+  void clear() {
+    cache.invalidateAll();
+  }
+}
@@ -1,21 +1,29 @@
 package gov.usgs.earthquake.nshmp.www;
 
-import static gov.usgs.earthquake.nshmp.www.ServletUtil.GSON;
 import static gov.usgs.earthquake.nshmp.www.ServletUtil.emptyRequest;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
 import gov.usgs.earthquake.nshmp.calc.Deaggregation;
 import gov.usgs.earthquake.nshmp.calc.Hazard;
@@ -25,8 +33,10 @@ import gov.usgs.earthquake.nshmp.gmm.Imt;
 import gov.usgs.earthquake.nshmp.internal.Parsing;
 import gov.usgs.earthquake.nshmp.internal.Parsing.Delimiter;
 import gov.usgs.earthquake.nshmp.www.HazardService.RequestData;
+import gov.usgs.earthquake.nshmp.www.ServletUtil.ResultWriter;
 import gov.usgs.earthquake.nshmp.www.ServletUtil.TimedTask;
 import gov.usgs.earthquake.nshmp.www.ServletUtil.Timer;
+import gov.usgs.earthquake.nshmp.www.TaskScheduler.Lane;
 import gov.usgs.earthquake.nshmp.www.meta.Edition;
 import gov.usgs.earthquake.nshmp.www.meta.Metadata;
 import gov.usgs.earthquake.nshmp.www.meta.Region;
@@ -41,12 +51,18 @@ import gov.usgs.earthquake.nshmp.www.meta.Status;
 @WebServlet(
     name = "Deaggregation Service",
     description = "USGS NSHMP Hazard Deaggregator",
+    asyncSupported = true,
     urlPatterns = {
         "/deagg",
         "/deagg/*" })
 public final class DeaggService extends NshmpServlet {
 
-  /* Developer notes: See HazardService. */
+  /*
+   * Developer notes: See HazardService.
+   *
+   * A request may supply a list of return periods. Hazard is computed once
+   * and a deaggregation is returned for each IMT and return period.
+   */
 
   @Override
   protected void doGet(
@@ -55,7 +71,6 @@ public final class DeaggService extends NshmpServlet {
       throws ServletException, IOException {
 
     UrlHelper urlHelper = urlHelper(request, response);
-    String query = request.getQueryString();
     Optional<String> pathInfo = Optional.ofNullable(request.getPathInfo());
 
     if (emptyRequest(request)) {
@@ -79,7 +94,7 @@ public final class DeaggService extends NshmpServlet {
 
     RequestData requestData;
     try {
-      if (query != null) {
+      if (Util.isQueryRequest(request)) {
         /* process query '?' request */
         requestData = HazardService.buildRequest(request);
       } else {
@@ -92,11 +107,25 @@ public final class DeaggService extends NshmpServlet {
         requestData = HazardService.buildRequest(params);
       }
 
-      /* Submit as task to job executor */
       DeaggTask task = new DeaggTask(urlHelper.url, getServletContext(), requestData);
-      Result result = ServletUtil.TASK_EXECUTOR.submit(task).get();
-      String resultStr = GSON.toJson(result);
-      response.getWriter().print(resultStr);
+      if (JobQueue.isJobRequest(request)) {
+        ServletUtil.JOB_QUEUE.submit(request, response, urlHelper, Lane.DEAGG, task);
+        return;
+      }
+      ResultWriter<Result> writer = ServletUtil.resultWriter(
+          Util.readFormat(request),
+          Result::writeCsv);
+
+      /* Submit as task to job executor; joins identical in-flight requests */
+      ListenableFuture<Result> result = ServletUtil.TASK_SCHEDULER.submit(
+          Lane.DEAGG,
+          requestData,
+          task);
+      ServletUtil.writeResult(
+          request.startAsync(request, response),
+          result,
+          urlHelper.url,
+          writer);
 
     } catch (Exception e) {
       String message = Metadata.errorMessage(urlHelper.url, e, false);
@@ -115,21 +144,70 @@ public final class DeaggService extends NshmpServlet {
     }
 
     @Override
-    Result calc() throws Exception {
-
-      Hazard hazard = HazardService.calcHazard(data, context);
-      Deaggregation deagg = HazardCalcs.deaggReturnPeriod(
-          hazard,
-          data.returnPeriod.getAsDouble(),
-          ServletUtil.CALC_EXECUTOR);
+    Result attach(Result result) {
+      Object server = Metadata.serverData(ServletUtil.THREAD_COUNT, timer);
+      return new Result(url, server, result.response);
+    }
 
-      return new Result.Builder()
+    @Override
+    Result calc() throws Exception {
+      Result.Builder builder = new Result.Builder()
           .requestData(data)
           .url(url)
-          .timer(timer)
-          .deagg(deagg)
-          .build();
+          .timer(timer);
+      JsonElement response = ServletUtil.RESULT_STORE.get(
+          storeKey(data),
+          () -> builder.deagg(calcDeagg(data, context, executor)).responses());
+      return builder.build(response);
+    }
+  }
+
+  static List<Deaggregation> calcDeagg(
+      RequestData data,
+      ServletContext context,
+      Executor executor) throws Exception {
+
+    /* Hazard is independent of return period and may be reused. */
+    String hazardKey = ResultStore.key(
+        "hazard:deagg",
+        HazardService.models(data),
+        data.latitude,
+        data.longitude,
+        data.imts,
+        data.vs30.name());
+    Hazard hazard = ServletUtil.DEAGG_HAZARD_CACHE.get(
+        hazardKey,
+        () -> HazardService.calcHazard(data, context, executor));
+    return deaggReturnPeriods(hazard, data.returnPeriods, executor);
+  }
+
+  /*
+   * Deaggregate hazard at each of the supplied return periods. Deaggregations
+   * run concurrently, each distributed across the supplied executor; see
+   * ServletUtil.calcAll(). This method is shared with DeaggService2.
+   */
+  static List<Deaggregation> deaggReturnPeriods(
+      Hazard hazard,
+      List<Double> returnPeriods,
+      Executor executor) throws Exception {
+
+    List<Callable<Deaggregation>> deaggs = new ArrayList<>(returnPeriods.size());
+    for (double returnPeriod : returnPeriods) {
+      deaggs.add(() -> HazardCalcs.deaggReturnPeriod(hazard, returnPeriod, executor));
     }
+    return ServletUtil.calcAll(deaggs);
+  }
+
+  /* Result store key; see HazardService.models(). */
+  private static String storeKey(RequestData data) {
+    return ResultStore.key(
+        "deagg",
+        HazardService.models(data),
+        data.latitude,
+        data.longitude,
+        data.imts,
+        data.vs30.name(),
+        data.returnPeriods);
   }
 
   private static final class ResponseData {
@@ -146,13 +224,13 @@ public final class DeaggService extends NshmpServlet {
     final String εlabel = "% Contribution to Hazard";
     final Object εbins;
 
-    ResponseData(Deaggregation deagg, RequestData request, Imt imt) {
+    ResponseData(Deaggregation deagg, RequestData request, Imt imt, double returnPeriod) {
       this.edition = request.edition;
       this.region = request.region;
       this.longitude = request.longitude;
       this.latitude = request.latitude;
       this.imt = imt;
-      this.returnperiod = request.returnPeriod.getAsDouble();
+      this.returnperiod = returnPeriod;
       this.vs30 = request.vs30;
       this.εbins = deagg.εBins();
     }
@@ -177,9 +255,9 @@ public final class DeaggService extends NshmpServlet {
     final String date = ZonedDateTime.now().format(ServletUtil.DATE_FMT);
     final String url;
     final Object server;
-    final List<Response> response;
+    final JsonElement response;
 
-    Result(String url, Object server, List<Response> response) {
+    Result(String url, Object server, JsonElement response) {
       this.url = url;
       this.server = server;
       this.response = response;
@@ -190,10 +268,11 @@ public final class DeaggService extends NshmpServlet {
       String url;
       Timer timer;
       RequestData request;
-      Deaggregation deagg;
+      List<Deaggregation> deaggs;
 
-      Builder deagg(Deaggregation deagg) {
-        this.deagg = deagg;
+      /* Deaggregations in the order of the requested return periods. */
+      Builder deagg(List<Deaggregation> deaggs) {
+        this.deaggs = deaggs;
         return this;
       }
 
@@ -212,24 +291,94 @@ public final class DeaggService extends NshmpServlet {
         return this;
       }
 
-      Result build() {
+      /*
+       * The deaggregation response, exclusive of request and server metadata;
+       * one entry per IMT and return period.
+       */
+      List<Response> responses() {
 
         ImmutableList.Builder<Response> responseListBuilder = ImmutableList.builder();
         for (Imt imt : request.imts) {
-          ResponseData responseData = new ResponseData(
-              deagg,
-              request,
-              imt);
-          Object deaggs = deagg.toJson(imt);
-          Response response = new Response(responseData, deaggs);
-          responseListBuilder.add(response);
+          for (int i = 0; i < deaggs.size(); i++) {
+            Deaggregation deagg = deaggs.get(i);
+            ResponseData responseData = new ResponseData(
+                deagg,
+                request,
+                imt,
+                request.returnPeriods.get(i));
+            Response response = new Response(responseData, deagg.toJson(imt));
+            responseListBuilder.add(response);
+          }
         }
-        List<Response> responseList = responseListBuilder.build();
+        return responseListBuilder.build();
+      }
+
+      Result build(JsonElement response) {
         Object server = Metadata.serverData(ServletUtil.THREAD_COUNT, timer);
+        return new Result(url, server, response);
+      }
+    }
 
-        return new Result(url, server, responseList);
+    /*
+     * CSV response: request metadata as comments followed by one row per
+     * non-zero magnitude-distance-epsilon bin of each IMT, return period, and
+     * component. The response is read back from its JSON form, which is what
+     * is retained in the result store; contributing source summaries are JSON
+     * only.
+     */
+    static void writeCsv(Result result, ServletResponse response) throws IOException {
+      response.setContentType(ServletUtil.CSV_CONTENT_TYPE);
+      PrintWriter out = response.getWriter();
+      ServletUtil.writeCsvComment(out, "url", result.url);
+      ServletUtil.writeCsvComment(out, "date", result.date);
+      JsonArray responses = result.response.getAsJsonArray();
+      if (responses.size() > 0) {
+        JsonObject metadata = responses.get(0).getAsJsonObject().getAsJsonObject("metadata");
+        ServletUtil.writeCsvComment(out, "edition", display(metadata, "edition"));
+        ServletUtil.writeCsvComment(out, "region", display(metadata, "region"));
+        ServletUtil.writeCsvComment(out, "latitude", metadata.get("latitude"));
+        ServletUtil.writeCsvComment(out, "longitude", metadata.get("longitude"));
+        ServletUtil.writeCsvComment(out, "vs30", display(metadata, "vs30"));
+        ServletUtil.writeCsvComment(out, "value", metadata.get("εlabel").getAsString());
+      }
+      ServletUtil.writeCsvRow(out, "imt", "returnperiod", "component", "r", "m", "εbin", "value");
+      for (JsonElement imtResponse : responses) {
+        JsonObject imtObject = imtResponse.getAsJsonObject();
+        JsonObject metadata = imtObject.getAsJsonObject("metadata");
+        String imt = metadata.getAsJsonObject("imt").get("value").getAsString();
+        double returnPeriod = metadata.get("returnperiod").getAsDouble();
+        for (JsonElement component : imtObject.getAsJsonArray("data")) {
+          JsonObject componentObject = component.getAsJsonObject();
+          String name = componentObject.get("component").getAsString();
+          JsonArray bins = componentObject.getAsJsonArray("data");
+          if (bins == null) {
+            continue;
+          }
+          for (JsonElement bin : bins) {
+            JsonObject rmBin = bin.getAsJsonObject();
+            double r = rmBin.get("r").getAsDouble();
+            double m = rmBin.get("m").getAsDouble();
+            for (JsonElement εData : rmBin.getAsJsonArray("εdata")) {
+              JsonObject εBin = εData.getAsJsonObject();
+              ServletUtil.writeCsvRow(
+                  out,
+                  imt,
+                  returnPeriod,
+                  name,
+                  r,
+                  m,
+                  εBin.get("εbin").getAsInt(),
+                  εBin.get("value").getAsDouble());
+            }
+          }
+        }
       }
     }
+
+    /* Display name of a serialized enum; see meta.Util.EnumSerializer. */
+    private static String display(JsonObject metadata, String key) {
+      return metadata.getAsJsonObject(key).get("display").getAsString();
+    }
   }
 
 }
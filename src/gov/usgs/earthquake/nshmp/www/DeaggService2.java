@@ -1,7 +1,6 @@
 package gov.usgs.earthquake.nshmp.www;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static gov.usgs.earthquake.nshmp.www.ServletUtil.GSON;
 import static gov.usgs.earthquake.nshmp.www.ServletUtil.MODEL_CACHE_CONTEXT_ID;
 import static gov.usgs.earthquake.nshmp.www.ServletUtil.emptyRequest;
 import static gov.usgs.earthquake.nshmp.www.Util.readBoolean;
@@ -19,11 +18,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -33,6 +36,9 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.JsonElement;
 
 import gov.usgs.earthquake.nshmp.calc.CalcConfig;
 import gov.usgs.earthquake.nshmp.calc.Deaggregation;
@@ -44,8 +50,10 @@ import gov.usgs.earthquake.nshmp.geo.Location;
 import gov.usgs.earthquake.nshmp.gmm.Imt;
 import gov.usgs.earthquake.nshmp.internal.Parsing;
 import gov.usgs.earthquake.nshmp.internal.Parsing.Delimiter;
+import gov.usgs.earthquake.nshmp.www.ServletUtil.ResultWriter;
 import gov.usgs.earthquake.nshmp.www.ServletUtil.TimedTask;
 import gov.usgs.earthquake.nshmp.www.ServletUtil.Timer;
+import gov.usgs.earthquake.nshmp.www.TaskScheduler.Lane;
 import gov.usgs.earthquake.nshmp.www.meta.Metadata;
 import gov.usgs.earthquake.nshmp.www.meta.Status;
 
@@ -59,6 +67,7 @@ import gov.usgs.earthquake.nshmp.www.meta.Status;
 @WebServlet(
     name = "Deaggregation Service (new)",
     description = "USGS NSHMP Hazard Deaggregator",
+    asyncSupported = true,
     urlPatterns = {
         "/deagg2",
         "/deagg2/*" })
@@ -115,11 +124,23 @@ public final class DeaggService2 extends NshmpServlet {
 
     try {
       RequestData requestData = buildRequestData(request);
-
-      /* Submit as task to job executor */
       Deagg2Task task = new Deagg2Task(urlHelper.url, getServletContext(), requestData);
-      Result result = ServletUtil.TASK_EXECUTOR.submit(task).get();
-      GSON.toJson(result, response.getWriter());
+      if (JobQueue.isJobRequest(request)) {
+        ServletUtil.JOB_QUEUE.submit(request, response, urlHelper, Lane.DEAGG, task);
+        return;
+      }
+      ResultWriter<Result> writer = ServletUtil.resultWriter(Util.readFormat(request), null);
+
+      /* Submit as task to job executor; joins identical in-flight requests */
+      ListenableFuture<Result> result = ServletUtil.TASK_SCHEDULER.submit(
+          Lane.DEAGG,
+          requestData,
+          task);
+      ServletUtil.writeResult(
+          request.startAsync(request, response),
+          result,
+          urlHelper.url,
+          writer);
 
     } catch (Exception e) {
       String message = Metadata.errorMessage(urlHelper.url, e, false);
@@ -138,17 +159,17 @@ public final class DeaggService2 extends NshmpServlet {
       double lat;
       Imt imt;
       double vs30;
-      double returnPeriod;
+      List<Double> returnPeriods;
       boolean basin;
 
-      if (request.getQueryString() != null) {
+      if (Util.isQueryRequest(request)) {
         /* process query '?' request */
         models = readModelsFromQuery(request);
         lon = readDouble(LONGITUDE, request);
         lat = readDouble(LATITUDE, request);
         imt = readValue(IMT, request, Imt.class);
         vs30 = readDouble(VS30, request);
-        returnPeriod = readDouble(RETURNPERIOD, request);
+        returnPeriods = HazardService.readReturnPeriods(Util.readValues(RETURNPERIOD, request));
         basin = readBoolean(BASIN, request);
 
       } else {
@@ -161,7 +182,7 @@ public final class DeaggService2 extends NshmpServlet {
         lat = Double.valueOf(params.get(2));
         imt = Imt.valueOf(params.get(3));
         vs30 = Double.valueOf(params.get(4));
-        returnPeriod = Double.valueOf(params.get(5));
+        returnPeriods = HazardService.readReturnPeriods(params.get(5));
         basin = Boolean.valueOf(params.get(6));
       }
 
@@ -171,7 +192,7 @@ public final class DeaggService2 extends NshmpServlet {
           lat,
           imt,
           vs30,
-          returnPeriod,
+          returnPeriods,
           basin);
 
     } catch (Exception e) {
@@ -204,15 +225,21 @@ public final class DeaggService2 extends NshmpServlet {
     }
 
     @Override
-    Result calc() throws Exception {
-      Deaggregation deagg = calcDeagg(data);
+    Result attach(Result result) {
+      Object server = Metadata.serverData(ServletUtil.THREAD_COUNT, timer);
+      return new Result(url, server, result.response);
+    }
 
-      return new Result.Builder()
+    @Override
+    Result calc() throws Exception {
+      Result.Builder builder = new Result.Builder()
           .requestData(data)
           .url(url)
-          .timer(timer)
-          .deagg(deagg)
-          .build();
+          .timer(timer);
+      JsonElement response = ServletUtil.RESULT_STORE.get(
+          data.storeKey(),
+          () -> builder.deagg(calcDeagg(data, executor)).responses());
+      return builder.build(response);
     }
   }
 
@@ -227,33 +254,51 @@ public final class DeaggService2 extends NshmpServlet {
    * Site has logic for parsing the basin service response, which perhaps it
    * shouldn't. TODO is it worth decomposing data objects and services
    */
-  Deaggregation calcDeagg(RequestData data) {
+  List<Deaggregation> calcDeagg(RequestData data, Executor executor) throws Exception {
     Location loc = Location.create(data.latitude, data.longitude);
 
-    Site site = Site.builder()
-        .location(Location.create(data.latitude, data.longitude))
-        .basinDataProvider(data.basin ? this.basinUrl : null)
-        .vs30(data.vs30)
-        .build();
-
-    Hazard[] hazards = new Hazard[data.models.size()];
-    for (int i = 0; i < data.models.size(); i++) {
-      HazardModel model = modelCache.getUnchecked(data.models.get(i));
-      hazards[i] = process(model, site, data.imt);
-    }
-    Hazard hazard = Hazard.merge(hazards);
-    return HazardCalcs.deaggReturnPeriod(
-        hazard,
-        data.returnPeriod,
-        ServletUtil.CALC_EXECUTOR);
+    /*
+     * Hazard is independent of the return period or ground motion of a
+     * deaggregation and may be reused. The site, which may require a call to
+     * the basin service, is only built if hazard must be computed.
+     */
+    String hazardKey = ResultStore.key(
+        "hazard:deagg2",
+        data.models,
+        data.latitude,
+        data.longitude,
+        Sets.immutableEnumSet(EnumSet.of(data.imt)),
+        data.vs30,
+        data.basin);
+    Hazard hazard = ServletUtil.DEAGG_HAZARD_CACHE.get(hazardKey, () -> {
+      Site site = Site.builder()
+          .location(Location.create(data.latitude, data.longitude))
+          .basinDataProvider(data.basin ? this.basinUrl : null)
+          .vs30(data.vs30)
+          .build();
+      /* Models are evaluated concurrently; see ServletUtil.calcAll(). */
+      List<Callable<Hazard>> calcs = new ArrayList<>(data.models.size());
+      for (Model model : data.models) {
+        HazardModel hazardModel = modelCache.getUnchecked(model);
+        calcs.add(() -> process(hazardModel, site, data.imt, executor));
+      }
+      List<Hazard> hazards = ServletUtil.calcAll(calcs);
+      return Hazard.merge(hazards.toArray(new Hazard[hazards.size()]));
+    });
+    return DeaggService.deaggReturnPeriods(hazard, data.returnPeriods, executor);
   }
 
-  private static Hazard process(HazardModel model, Site site, Imt imt) {
+  private static Hazard process(
+      HazardModel model,
+      Site site,
+      Imt imt,
+      Executor executor) {
+
     CalcConfig config = CalcConfig.Builder
         .copyOf(model.config())
         .imts(EnumSet.of(imt))
         .build();
-    return HazardCalcs.hazard(model, config, site, ServletUtil.CALC_EXECUTOR);
+    return HazardCalcs.hazard(model, config, site, executor);
   }
 
   static final class RequestData {
@@ -263,7 +308,7 @@ public final class DeaggService2 extends NshmpServlet {
     final double longitude;
     final Imt imt;
     final double vs30;
-    final double returnPeriod;
+    final List<Double> returnPeriods;
     final boolean basin;
 
     RequestData(
@@ -272,7 +317,7 @@ public final class DeaggService2 extends NshmpServlet {
         double latitude,
         Imt imt,
         double vs30,
-        double returnPeriod,
+        List<Double> returnPeriods,
         boolean basin) {
 
       this.models = models;
@@ -280,9 +325,49 @@ public final class DeaggService2 extends NshmpServlet {
       this.longitude = longitude;
       this.imt = imt;
       this.vs30 = vs30;
-      this.returnPeriod = returnPeriod;
+      this.returnPeriods = returnPeriods;
       this.basin = basin;
     }
+
+    /* Result store key. */
+    String storeKey() {
+      return ResultStore.key(
+          "deagg2",
+          models,
+          latitude,
+          longitude,
+          imt.name(),
+          vs30,
+          returnPeriods,
+          basin);
+    }
+
+    /*
+     * Model order is significant; the config of the first model is used when
+     * merging Hazard. See HazardService.RequestData.
+     */
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof RequestData)) {
+        return false;
+      }
+      RequestData that = (RequestData) obj;
+      return models.equals(that.models) &&
+          Double.compare(latitude, that.latitude) == 0 &&
+          Double.compare(longitude, that.longitude) == 0 &&
+          imt == that.imt &&
+          Double.compare(vs30, that.vs30) == 0 &&
+          returnPeriods.equals(that.returnPeriods) &&
+          basin == that.basin;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(models, latitude, longitude, imt, vs30, returnPeriods, basin);
+    }
   }
 
   private static final class ResponseData {
@@ -298,13 +383,13 @@ public final class DeaggService2 extends NshmpServlet {
     final String εlabel = "% Contribution to Hazard";
     final Object εbins;
 
-    ResponseData(Deaggregation deagg, RequestData request, Imt imt) {
+    ResponseData(Deaggregation deagg, RequestData request, Imt imt, double returnPeriod) {
       this.models = request.models;
       this.longitude = request.longitude;
       this.latitude = request.latitude;
       this.imt = imt;
       this.vs30 = request.vs30;
-      this.returnperiod = request.returnPeriod;
+      this.returnperiod = returnPeriod;
       this.εbins = deagg.εBins();
     }
   }
@@ -326,9 +411,9 @@ public final class DeaggService2 extends NshmpServlet {
     final String date = ZonedDateTime.now().format(ServletUtil.DATE_FMT);
     final String url;
     final Object server;
-    final List<Response> response;
+    final JsonElement response;
 
-    Result(String url, Object server, List<Response> response) {
+    Result(String url, Object server, JsonElement response) {
       this.url = url;
       this.server = server;
       this.response = response;
@@ -339,10 +424,11 @@ public final class DeaggService2 extends NshmpServlet {
       String url;
       Timer timer;
       RequestData request;
-      Deaggregation deagg;
+      List<Deaggregation> deaggs;
 
-      Builder deagg(Deaggregation deagg) {
-        this.deagg = deagg;
+      /* Deaggregations in the order of the requested return periods. */
+      Builder deagg(List<Deaggregation> deaggs) {
+        this.deaggs = deaggs;
         return this;
       }
 
@@ -361,22 +447,30 @@ public final class DeaggService2 extends NshmpServlet {
         return this;
       }
 
-      Result build() {
+      /*
+       * The deaggregation response, exclusive of request and server metadata;
+       * one entry per return period.
+       */
+      List<Response> responses() {
 
         ImmutableList.Builder<Response> responseListBuilder = ImmutableList.builder();
         Imt imt = request.imt;
-        ResponseData responseData = new ResponseData(
-            deagg,
-            request,
-            imt);
-        Object deaggs = deagg.toJson(imt);
-        Response response = new Response(responseData, deaggs);
-        responseListBuilder.add(response);
-
-        List<Response> responseList = responseListBuilder.build();
-        Object server = Metadata.serverData(ServletUtil.THREAD_COUNT, timer);
+        for (int i = 0; i < deaggs.size(); i++) {
+          Deaggregation deagg = deaggs.get(i);
+          ResponseData responseData = new ResponseData(
+              deagg,
+              request,
+              imt,
+              request.returnPeriods.get(i));
+          Response response = new Response(responseData, deagg.toJson(imt));
+          responseListBuilder.add(response);
+        }
+        return responseListBuilder.build();
+      }
 
-        return new Result(url, server, responseList);
+      Result build(JsonElement response) {
+        Object server = Metadata.serverData(ServletUtil.THREAD_COUNT, timer);
+        return new Result(url, server, response);
       }
     }
   }
@@ -5,6 +5,7 @@ import static gov.usgs.earthquake.nshmp.ResponseSpectra.spectra;
 import static gov.usgs.earthquake.nshmp.gmm.GmmInput.Field.VSINF;
 import static gov.usgs.earthquake.nshmp.gmm.Imt.AI;
 import static gov.usgs.earthquake.nshmp.gmm.Imt.PGV;
+import static gov.usgs.earthquake.nshmp.www.Util.readFormat;
 import static gov.usgs.earthquake.nshmp.www.Util.readValue;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.IMT;
 import static gov.usgs.earthquake.nshmp.www.meta.Metadata.errorMessage;
@@ -13,9 +14,11 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -36,12 +39,16 @@ import com.google.common.collect.FluentIterable;
 import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
 import com.google.common.primitives.Doubles;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.google.gson.stream.JsonWriter;
 
 import gov.usgs.earthquake.nshmp.GroundMotions;
 import gov.usgs.earthquake.nshmp.GroundMotions.DistanceResult;
@@ -56,6 +63,7 @@ import gov.usgs.earthquake.nshmp.gmm.GmmInput.Field;
 import gov.usgs.earthquake.nshmp.gmm.Imt;
 import gov.usgs.earthquake.nshmp.internal.Parsing;
 import gov.usgs.earthquake.nshmp.internal.Parsing.Delimiter;
+import gov.usgs.earthquake.nshmp.www.Util.Format;
 import gov.usgs.earthquake.nshmp.www.meta.EnumParameter;
 import gov.usgs.earthquake.nshmp.www.meta.ParamType;
 import gov.usgs.earthquake.nshmp.www.meta.Status;
@@ -76,8 +84,12 @@ public class GmmServices extends NshmpServlet {
   private static final String RMIN_KEY = "rMin";
   private static final String RMAX_KEY = "rMax";
   private static final String IMT_KEY = "imt";
+  private static final String RESPONSE_KEY = "response";
   private static final int ROUND = 5;
 
+  /* The number of POST rows evaluated ahead of the response. */
+  private static final int POST_WINDOW = 4 * ServletUtil.THREAD_COUNT;
+
   static {
     GSON = new GsonBuilder()
         .setPrettyPrinting()
@@ -103,11 +115,12 @@ public class GmmServices extends NshmpServlet {
       /* At a minimum, Gmms must be defined. */
       if (!hasGMM(request, service, urlHelper)) return;
 
+      Format format = readGmmFormat(request);
       Map<String, String[]> params = request.getParameterMap();
 
       ResponseData svcResponse = processRequest(service, params, urlHelper);
 
-      response.getWriter().print(GSON.toJson(svcResponse));
+      writeResponse(format, response, svcResponse);
     } catch (Exception e) {
       String message = errorMessage(urlHelper.url, e, false);
       response.getWriter().print(message);
@@ -115,6 +128,16 @@ public class GmmServices extends NshmpServlet {
     }
   }
 
+  /*
+   * POST requests supply rows of ground motion model inputs as CSV, with a
+   * header row of input field names. Rows are read and evaluated as a stream
+   * so that memory use is independent of the number of rows: at most
+   * POST_WINDOW rows are read ahead of the response and evaluated, in
+   * parallel, on ServletUtil.GMM_EXECUTOR. Results are written, in row order,
+   * as each becomes available. The response has the same form as before, but
+   * a row that fails is reported in place rather than failing the request.
+   * Errors that occur once the response has begun are handled by abort().
+   */
   @Override
   protected void doPost(
       HttpServletRequest request,
@@ -124,52 +147,198 @@ public class GmmServices extends NshmpServlet {
     BufferedReader requestReader = request.getReader();
     UrlHelper urlHelper = urlHelper(request, response);
     Service service = getService(request);
+    PostWriter writer = null;
 
     try {
       /* At a minimum, Gmms must be defined. */
       if (!hasGMM(request, service, urlHelper)) return;
 
+      Format format = readGmmFormat(request);
       String[] gmmParams = request.getParameterValues(GMM_KEY);
 
-      List<String> requestData = requestReader.lines().collect(Collectors.toList());
-
-      if (requestData.isEmpty()) {
+      String header = readLine(requestReader);
+      if (header == null) {
         throw new IllegalStateException("Post data is empty");
       }
-
-      List<String> keys = Parsing.splitToList(requestData.get(0), Delimiter.COMMA);
+      List<String> keys = Parsing.splitToList(header, Delimiter.COMMA);
 
       ResponseDataPost svcResponse = new ResponseDataPost(service, urlHelper);
+      writer = new PostWriter(format, response, svcResponse);
+      Deque<ListenableFuture<ResponseData>> window = new ArrayDeque<>();
+      try {
+        String line;
+        while ((line = readLine(requestReader)) != null) {
+          String row = line;
+          window.add(ServletUtil.GMM_EXECUTOR.submit(() -> processRequest(
+              service,
+              rowParams(keys, row, gmmParams),
+              urlHelper)));
+          if (window.size() == POST_WINDOW) {
+            writer.write(window.remove(), urlHelper);
+          }
+        }
+        while (!window.isEmpty()) {
+          writer.write(window.remove(), urlHelper);
+        }
+      } finally {
+        /* Client disconnects leave nothing to write to */
+        for (ListenableFuture<ResponseData> future : window) {
+          future.cancel(true);
+        }
+      }
+      writer.finish();
+    } catch (Exception e) {
+      if (writer != null) {
+        abort(response, urlHelper, e);
+        return;
+      }
+      String message = errorMessage(urlHelper.url, e, false);
+      response.getWriter().print(message);
+      e.printStackTrace();
+    }
+  }
+
+  /*
+   * Once a POST response has begun, in JSON or CBOR, an error message can not
+   * be appended to it, and terminating it would present a truncated response
+   * as complete. The error is logged and the response is either reset, if
+   * nothing has reached the client, or left unterminated.
+   */
+  private void abort(HttpServletResponse response, UrlHelper urlHelper, Exception e)
+      throws IOException {
+
+    getServletContext().log(urlHelper.url, e);
+    if (!response.isCommitted()) {
+      response.reset();
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
 
-      List<ResponseData> gmmResponses = requestData.subList(1, requestData.size())
-          .parallelStream()
-          .filter((line) -> !line.startsWith("#") && !line.trim().isEmpty())
-          .map((line) -> {
-            List<String> values = Parsing.splitToList(line, Delimiter.COMMA);
+  /* Ground motion model services respond with JSON or CBOR only. */
+  private static Format readGmmFormat(HttpServletRequest request) {
+    Format format = readFormat(request);
+    checkArgument(
+        format == Format.JSON || format == Format.CBOR,
+        "Unsupported format [%s]; expected json or cbor",
+        format.name().toLowerCase());
+    return format;
+  }
+
+  /* Next line that is neither blank nor a comment, or null. */
+  private static String readLine(BufferedReader reader) throws IOException {
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (!line.startsWith("#") && !line.trim().isEmpty()) {
+        return line;
+      }
+    }
+    return null;
+  }
 
-            Map<String, String[]> params = new HashMap<>();
-            params.put(GMM_KEY, gmmParams);
+  private static Map<String, String[]> rowParams(
+      List<String> keys,
+      String line,
+      String[] gmmParams) {
+
+    List<String> values = Parsing.splitToList(line, Delimiter.COMMA);
+    checkArgument(
+        values.size() == keys.size(),
+        "Row [%s] has %s values; expected %s",
+        line, values.size(), keys.size());
+
+    Map<String, String[]> params = new HashMap<>();
+    params.put(GMM_KEY, gmmParams);
+    for (int i = 0; i < keys.size(); i++) {
+      String value = values.get(i);
+      if ("null".equals(value.toLowerCase())) continue;
+      params.put(keys.get(i), new String[] { value });
+    }
+    return params;
+  }
 
-            int index = 0;
+  /*
+   * Streaming writer of POST responses: the fields of a ResponseDataPost
+   * followed by its 'response' array, one element at a time, as JSON or, if
+   * negotiated, CBOR.
+   */
+  private static final class PostWriter {
+
+    private final JsonWriter json;
+    private final CborWriter cbor;
+
+    PostWriter(
+        Format format,
+        HttpServletResponse response,
+        ResponseDataPost svcResponse) throws IOException {
+
+      JsonObject fields = GSON.toJsonTree(svcResponse).getAsJsonObject();
+      fields.remove(RESPONSE_KEY);
+      if (format == Format.CBOR) {
+        response.setContentType(ServletUtil.CBOR_CONTENT_TYPE);
+        json = null;
+        cbor = new CborWriter(response.getOutputStream());
+        cbor.beginMap(fields.size() + 1);
+        for (Entry<String, JsonElement> field : fields.entrySet()) {
+          cbor.name(field.getKey());
+          cbor.value(field.getValue());
+        }
+        cbor.name(RESPONSE_KEY);
+        cbor.beginArray();
+      } else {
+        cbor = null;
+        json = new JsonWriter(response.getWriter());
+        json.setIndent("  ");
+        json.beginObject();
+        for (Entry<String, JsonElement> field : fields.entrySet()) {
+          json.name(field.getKey());
+          GSON.toJson(field.getValue(), json);
+        }
+        json.name(RESPONSE_KEY);
+        json.beginArray();
+      }
+    }
 
-            for (String key : keys) {
-              String value = values.get(index);
-              if ("null".equals(value.toLowerCase())) continue;
+    /* Wait for, and write, a row result; flushes so results reach clients. */
+    void write(ListenableFuture<ResponseData> future, UrlHelper urlHelper) throws IOException {
+      JsonElement element;
+      try {
+        element = GSON.toJsonTree(Futures.getUnchecked(future));
+      } catch (RuntimeException e) {
+        Throwable cause = (e.getCause() == null) ? e : e.getCause();
+        element = new JsonParser().parse(errorMessage(urlHelper.url, cause, false));
+      }
+      if (cbor != null) {
+        cbor.value(element);
+        cbor.flush();
+      } else {
+        GSON.toJson(element, json);
+        json.flush();
+      }
+    }
 
-              params.put(key, new String[] { value });
-              index++;
-            }
+    /* Terminate the response array and object. */
+    void finish() throws IOException {
+      if (cbor != null) {
+        cbor.endArray();
+        cbor.flush();
+      } else {
+        json.endArray();
+        json.endObject();
+        json.flush();
+      }
+    }
+  }
 
-            return processRequest(service, params, urlHelper);
-          })
-          .collect(Collectors.toList());
+  /* Write JSON or, if negotiated, CBOR; see Util.readFormat(). */
+  private static void writeResponse(
+      Format format,
+      HttpServletResponse response,
+      Object svcResponse) throws IOException {
 
-      svcResponse.setResponse(gmmResponses);
+    if (format == Format.CBOR) {
+      ServletUtil.writeCbor(GSON.toJsonTree(svcResponse), response);
+    } else {
       response.getWriter().print(GSON.toJson(svcResponse));
-    } catch (Exception e) {
-      String message = errorMessage(urlHelper.url, e, false);
-      response.getWriter().print(message);
-      e.printStackTrace();
     }
   }
 
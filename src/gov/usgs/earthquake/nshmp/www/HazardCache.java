@@ -0,0 +1,168 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import gov.usgs.earthquake.nshmp.calc.Vs30;
+import gov.usgs.earthquake.nshmp.gmm.Imt;
+import gov.usgs.earthquake.nshmp.www.meta.Metadata;
+
+/**
+ * Weight-bounded, in-memory cache of hazard curves. Hazard is fully determined
+ * by the models used, their versions, and the site and IMTs of a request, so
+ * repeat requests for popular sites may be served without recalculation.
+ * Entries are evicted in approximately least-recently-used order once the
+ * retained size of all curves exceeds the configured budget.
+ */
+final class HazardCache {
+
+  private final Cache<Key, HazardCurves> cache;
+
+  /**
+   * Create a new hazard cache.
+   *
+   * @param maxBytes the approximate maximum size of all cached curves
+   */
+  HazardCache(long maxBytes) {
+    checkArgument(maxBytes >= 0, "maxBytes [%s] may not be negative", maxBytes);
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(maxBytes)
+        .weigher((Key key, HazardCurves curves) -> curves.weight())
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Return the curves for the supplied key, reading them from the
+   * {@link ServletUtil#RESULT_STORE} or computing them with {@code loader} if
+   * absent. Computed curves are added to the store. Concurrent requests for the
+   * same key wait for a single load. Failed loads are not cached.
+   */
+  HazardCurves get(Key key, Callable<HazardCurves> loader) throws Exception {
+    try {
+      return cache.get(key, () -> {
+        String id = key.id();
+        Optional<String> stored = ServletUtil.RESULT_STORE.read(id);
+        if (stored.isPresent()) {
+          return HazardCurves.fromJson(stored.get());
+        }
+        HazardCurves curves = loader.call();
+        ServletUtil.RESULT_STORE.write(id, curves.toJson());
+        return curves;
+      });
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw e;
+    }
+  }
+
+  long size() {
+    return cache.size();
+  }
+
+  CacheStats stats() {
+    return cache.stats();
+  }
+
+  void clear() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Create a cache key.
+   *
+   * @param models that are combined to compute hazard
+   * @param latitude of site
+   * @param longitude of site
+   * @param vs30 of site
+   * @param imts for which hazard is computed
+   */
+  static Key key(
+      List<Model> models,
+      double latitude,
+      double longitude,
+      Vs30 vs30,
+      Set<Imt> imts) {
+
+    return new Key(models, latitude, longitude, vs30, imts);
+  }
+
+  /*
+   * Model versions are included so that a key never matches a result computed
+   * with a prior release of a model. Adding 0.0 normalizes -0.0 coordinates.
+   */
+  static final class Key {
+
+    final List<Model> models;
+    final List<String> versions;
+    final double latitude;
+    final double longitude;
+    final Vs30 vs30;
+    final Set<Imt> imts;
+
+    private Key(
+        List<Model> models,
+        double latitude,
+        double longitude,
+        Vs30 vs30,
+        Set<Imt> imts) {
+
+      this.models = ImmutableList.copyOf(models);
+      this.versions = models.stream()
+          .map(model -> Metadata.modelVersion("E" + model.year))
+          .collect(ImmutableList.toImmutableList());
+      this.latitude = latitude + 0.0;
+      this.longitude = longitude + 0.0;
+      this.vs30 = vs30;
+      this.imts = Sets.immutableEnumSet(imts);
+    }
+
+    /* Result store key. */
+    String id() {
+      return ResultStore.key(
+          "hazard",
+          models,
+          latitude,
+          longitude,
+          vs30.name(),
+          imts);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) obj;
+      return models.equals(that.models) &&
+          versions.equals(that.versions) &&
+          Double.compare(latitude, that.latitude) == 0 &&
+          Double.compare(longitude, that.longitude) == 0 &&
+          vs30 == that.vs30 &&
+          imts.equals(that.imts);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(models, versions, latitude, longitude, vs30, imts);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import static gov.usgs.earthquake.nshmp.calc.HazardExport.curvesBySource;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import gov.usgs.earthquake.nshmp.calc.Hazard;
+import gov.usgs.earthquake.nshmp.data.XySequence;
+import gov.usgs.earthquake.nshmp.eq.model.SourceType;
+import gov.usgs.earthquake.nshmp.gmm.Imt;
+
+/**
+ * The total and per-source-type hazard curves of a {@code Hazard} result. This
+ * is all that the hazard services return to clients and is much smaller than a
+ * full {@code Hazard}, which also retains the curves of every source set and
+ * ground motion model, and is therefore what is retained in result caches.
+ */
+final class HazardCurves {
+
+  /* Total curves, keyed by IMT. */
+  final Map<Imt, XySequence> totals;
+
+  /* Source type curves, keyed by IMT. */
+  final Map<Imt, Map<SourceType, XySequence>> components;
+
+  /* Linear model curve x-values, keyed by IMT. */
+  final Map<Imt, List<Double>> xValues;
+
+  HazardCurves(
+      Map<Imt, XySequence> totals,
+      Map<Imt, Map<SourceType, XySequence>> components,
+      Map<Imt, List<Double>> xValues) {
+
+    this.totals = Maps.immutableEnumMap(totals);
+    this.components = Maps.immutableEnumMap(components);
+    this.xValues = Maps.immutableEnumMap(xValues);
+  }
+
+  static HazardCurves of(Hazard hazard) {
+    Map<Imt, XySequence> totals = new EnumMap<>(Imt.class);
+    Map<Imt, Map<SourceType, XySequence>> components = new EnumMap<>(Imt.class);
+    Map<Imt, List<Double>> xValues = new EnumMap<>(Imt.class);
+
+    Map<Imt, Map<SourceType, XySequence>> typeTotalMaps = curvesBySource(hazard);
+
+    for (Imt imt : hazard.curves().keySet()) {
+
+      // total curve
+      hazard.curves().get(imt).addToMap(imt, totals);
+
+      // component curves
+      Map<SourceType, XySequence> typeTotalMap = typeTotalMaps.get(imt);
+      Map<SourceType, XySequence> componentMap = new EnumMap<>(SourceType.class);
+      for (SourceType type : typeTotalMap.keySet()) {
+        typeTotalMap.get(type).addToMap(type, componentMap);
+      }
+      components.put(imt, Maps.immutableEnumMap(componentMap));
+
+      xValues.put(imt, hazard.config().hazard.modelCurve(imt).xValues());
+    }
+    return new HazardCurves(totals, components, xValues);
+  }
+
+  /* Exact (unrounded) JSON for the result store. */
+  String toJson() {
+    List<StoredCurves> stored = new ArrayList<>();
+    for (Imt imt : totals.keySet()) {
+      stored.add(new StoredCurves(imt, this));
+    }
+    return STORE_GSON.toJson(stored);
+  }
+
+  static HazardCurves fromJson(String json) {
+    List<StoredCurves> stored = STORE_GSON.fromJson(json, STORED_TYPE);
+    Map<Imt, XySequence> totals = new EnumMap<>(Imt.class);
+    Map<Imt, Map<SourceType, XySequence>> components = new EnumMap<>(Imt.class);
+    Map<Imt, List<Double>> xValues = new EnumMap<>(Imt.class);
+    for (StoredCurves curves : stored) {
+      totals.put(curves.imt, XySequence.create(curves.x, curves.total));
+      Map<SourceType, XySequence> componentMap = new EnumMap<>(SourceType.class);
+      for (int i = 0; i < curves.types.size(); i++) {
+        componentMap.put(
+            curves.types.get(i),
+            XySequence.create(curves.x, curves.components.get(i)));
+      }
+      components.put(curves.imt, Maps.immutableEnumMap(componentMap));
+      xValues.put(curves.imt, ImmutableList.copyOf(curves.xValues));
+    }
+    return new HazardCurves(totals, components, xValues);
+  }
+
+  private static final Gson STORE_GSON = new Gson();
+  private static final Type STORED_TYPE = new TypeToken<List<StoredCurves>>() {}.getType();
+
+  private static final class StoredCurves {
+
+    Imt imt;
+    List<Double> x;
+    List<Double> total;
+    List<SourceType> types;
+    List<List<Double>> components;
+    List<Double> xValues;
+
+    StoredCurves(Imt imt, HazardCurves curves) {
+      this.imt = imt;
+      this.x = curves.totals.get(imt).xValues();
+      this.total = curves.totals.get(imt).yValues();
+      this.types = new ArrayList<>(curves.components.get(imt).keySet());
+      this.components = new ArrayList<>();
+      for (XySequence component : curves.components.get(imt).values()) {
+        components.add(component.yValues());
+      }
+      this.xValues = curves.xValues.get(imt);
+    }
+  }
+
+  /*
+   * Approximate retained size in bytes: the x- and y-values of each curve and
+   * the linear x-values. Used to weigh cache entries.
+   */
+  int weight() {
+    int size = 0;
+    for (Imt imt : totals.keySet()) {
+      int points = totals.get(imt).size();
+      int curves = 1 + components.get(imt).size();
+      size += curves * points * 2 * Double.BYTES + points * 3 * Double.BYTES;
+    }
+    return size;
+  }
+}
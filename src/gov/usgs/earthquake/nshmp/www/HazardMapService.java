@@ -0,0 +1,365 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static gov.usgs.earthquake.nshmp.www.ServletUtil.MODEL_CACHE_CONTEXT_ID;
+import static gov.usgs.earthquake.nshmp.www.ServletUtil.emptyRequest;
+import static gov.usgs.earthquake.nshmp.www.Util.readDouble;
+import static gov.usgs.earthquake.nshmp.www.Util.readValue;
+import static gov.usgs.earthquake.nshmp.www.Util.Key.IMT;
+import static gov.usgs.earthquake.nshmp.www.Util.Key.MODEL;
+import static gov.usgs.earthquake.nshmp.www.Util.Key.RETURNPERIOD;
+import static gov.usgs.earthquake.nshmp.www.Util.Key.VS30;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Doubles;
+
+import gov.usgs.earthquake.nshmp.calc.CalcConfig;
+import gov.usgs.earthquake.nshmp.calc.HazardCalcs;
+import gov.usgs.earthquake.nshmp.calc.Site;
+import gov.usgs.earthquake.nshmp.calc.Vs30;
+import gov.usgs.earthquake.nshmp.data.Interpolator;
+import gov.usgs.earthquake.nshmp.eq.model.HazardModel;
+import gov.usgs.earthquake.nshmp.geo.Location;
+import gov.usgs.earthquake.nshmp.gmm.Imt;
+import gov.usgs.earthquake.nshmp.internal.Parsing;
+import gov.usgs.earthquake.nshmp.internal.Parsing.Delimiter;
+import gov.usgs.earthquake.nshmp.www.ServletUtil.TimedTask;
+import gov.usgs.earthquake.nshmp.www.TaskScheduler.Lane;
+import gov.usgs.earthquake.nshmp.www.meta.Metadata;
+
+/**
+ * Gridded hazard map service. Computes hazard at the nodes of a regular grid
+ * over a bounding box and returns, for each node, the ground motions at one or
+ * more return periods, interpolated from the total hazard curve of a single
+ * IMT.
+ */
+@SuppressWarnings("unused")
+@WebServlet(
+    name = "Hazard Map Service",
+    description = "USGS NSHMP Gridded Hazard Map Calculator",
+    asyncSupported = true,
+    urlPatterns = "/haz-map")
+public final class HazardMapService extends NshmpServlet {
+
+  /*
+   * Developer notes:
+   *
+   * Query parameters: 'model', 'imt', 'vs30', 'returnperiod' (comma-delimited
+   * and/or repeated), the bounding box 'minlongitude', 'maxlongitude',
+   * 'minlatitude', and 'maxlatitude', and the grid 'spacing' in degrees.
+   *
+   * Nodes are visited row by row, north to south, alternating direction along
+   * each row so that consecutive nodes are always neighbors. Each node is a
+   * task run through the ServletUtil.TASK_SCHEDULER, a bounded window at a
+   * time (see TaskStream), so nodes that run together are close to one another
+   * and share the source and ground motion data of a locality. Curves are
+   * computed through the ServletUtil.HAZARD_CACHE with a config built once for
+   * the map.
+   *
+   * Results are streamed as CSV, a row per node as each completes, in the form
+   * of the AWS HazardResultSliceLambda map output: longitude, latitude, and a
+   * column of ground motions per return period. Clients may use partial
+   * results as they arrive; progress is reported in '#' comment lines, which
+   * CSV readers of map files skip. Large maps that take longer than a client
+   * or proxy will wait may be run as jobs; see JobQueue.
+   *
+   * The number of grid nodes in a request is limited by the system property
+   * 'maxMapNodes' [default: 100000].
+   */
+
+  private static final String MIN_LONGITUDE_KEY = "minlongitude";
+  private static final String MAX_LONGITUDE_KEY = "maxlongitude";
+  private static final String MIN_LATITUDE_KEY = "minlatitude";
+  private static final String MAX_LATITUDE_KEY = "maxlatitude";
+  private static final String SPACING_KEY = "spacing";
+
+  private static final int MAX_MAP_NODES = Integer.getInteger("maxMapNodes", 100000);
+
+  /* Progress is reported about every 1% of nodes. */
+  private static final int PROGRESS_STEPS = 100;
+
+  private static final Interpolator INTERPOLATOR = Interpolator.builder()
+      .logx()
+      .logy()
+      .decreasingX()
+      .build();
+
+  private LoadingCache<Model, HazardModel> modelCache;
+
+  private static final String USAGE = SourceServices.GSON.toJson(
+      new SourceServices.ResponseData());
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init() {
+    ServletContext context = getServletConfig().getServletContext();
+    Object modelCache = context.getAttribute(MODEL_CACHE_CONTEXT_ID);
+    this.modelCache = (LoadingCache<Model, HazardModel>) modelCache;
+  }
+
+  @Override
+  protected void doGet(
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws ServletException, IOException {
+
+    UrlHelper urlHelper = urlHelper(request, response);
+
+    if (emptyRequest(request)) {
+      urlHelper.writeResponse(USAGE);
+      return;
+    }
+
+    try {
+      RequestData data = buildRequestData(request);
+      List<double[]> nodes = nodes(data);
+      CalcConfig config = CalcConfig.Builder
+          .copyOf(modelCache.getUnchecked(data.model).config())
+          .imts(EnumSet.of(data.imt))
+          .build();
+
+      response.setContentType(ServletUtil.CSV_CONTENT_TYPE);
+      TaskStream.respond(
+          request,
+          response,
+          urlHelper,
+          Lane.HAZARD,
+          nodes.size(),
+          i -> new NodeTask(urlHelper.url, getServletContext(), data, config, nodes.get(i)),
+          new MapWriter(urlHelper.url, data, nodes));
+
+    } catch (Exception e) {
+      String message = Metadata.errorMessage(urlHelper.url, e, false);
+      response.getWriter().print(message);
+      getServletContext().log(urlHelper.url, e);
+    }
+  }
+
+  static RequestData buildRequestData(HttpServletRequest request) {
+    try {
+      Model model = readValue(MODEL, request, Model.class);
+      Imt imt = readValue(IMT, request, Imt.class);
+      Vs30 vs30 = Vs30.fromValue(readDouble(VS30, request));
+      List<Double> returnPeriods = new ArrayList<>();
+      for (String values : Util.readValues(RETURNPERIOD, request)) {
+        for (String value : Parsing.splitToList(values, Delimiter.COMMA)) {
+          returnPeriods.add(Double.valueOf(value));
+        }
+      }
+      return new RequestData(
+          model,
+          imt,
+          vs30,
+          returnPeriods,
+          readParameter(request, MIN_LONGITUDE_KEY),
+          readParameter(request, MAX_LONGITUDE_KEY),
+          readParameter(request, MIN_LATITUDE_KEY),
+          readParameter(request, MAX_LATITUDE_KEY),
+          readParameter(request, SPACING_KEY));
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Error parsing request URL", e);
+    }
+  }
+
+  private static double readParameter(HttpServletRequest request, String key) {
+    String value = request.getParameter(key);
+    checkArgument(value != null, "Missing query key [%s]", key);
+    return Double.valueOf(value);
+  }
+
+  /* Grid nodes as [lon, lat], in serpentine order from the north. */
+  static List<double[]> nodes(RequestData data) {
+    int columns = nodeCount(data.minLongitude, data.maxLongitude, data.spacing);
+    int rows = nodeCount(data.minLatitude, data.maxLatitude, data.spacing);
+    checkArgument(
+        (long) columns * rows <= MAX_MAP_NODES,
+        "Map grid of %s x %s nodes exceeds the limit of %s nodes",
+        columns, rows, MAX_MAP_NODES);
+
+    List<double[]> nodes = new ArrayList<>(columns * rows);
+    for (int row = 0; row < rows; row++) {
+      double lat = coordinate(data.maxLatitude, -row, data.spacing);
+      for (int column = 0; column < columns; column++) {
+        int lonIndex = (row % 2 == 0) ? column : columns - 1 - column;
+        double lon = coordinate(data.minLongitude, lonIndex, data.spacing);
+        nodes.add(new double[] { lon, lat });
+      }
+    }
+    return nodes;
+  }
+
+  private static int nodeCount(double min, double max, double spacing) {
+    return (int) Math.floor((max - min) / spacing + 1e-9) + 1;
+  }
+
+  /* Grid coordinate, rounded to remove accumulated floating point error. */
+  private static double coordinate(double origin, int index, double spacing) {
+    return Math.rint((origin + index * spacing) * 1e6) / 1e6;
+  }
+
+  static final class RequestData {
+
+    final Model model;
+    final Imt imt;
+    final Vs30 vs30;
+    final List<Double> returnPeriods;
+    final double minLongitude;
+    final double maxLongitude;
+    final double minLatitude;
+    final double maxLatitude;
+    final double spacing;
+
+    RequestData(
+        Model model,
+        Imt imt,
+        Vs30 vs30,
+        List<Double> returnPeriods,
+        double minLongitude,
+        double maxLongitude,
+        double minLatitude,
+        double maxLatitude,
+        double spacing) {
+
+      checkArgument(model.imts.contains(imt), "Unsupported IMT [%s] for %s", imt, model);
+      checkArgument(model.vs30s.contains(vs30), "Unsupported vs30 [%s] for %s", vs30, model);
+      checkArgument(!returnPeriods.isEmpty(), "No return periods specified");
+      for (double returnPeriod : returnPeriods) {
+        checkArgument(returnPeriod > 0, "Invalid return period [%s]", returnPeriod);
+      }
+      checkArgument(spacing > 0, "Invalid spacing [%s]", spacing);
+      checkArgument(minLongitude <= maxLongitude, "minlongitude exceeds maxlongitude");
+      checkArgument(minLatitude <= maxLatitude, "minlatitude exceeds maxlatitude");
+
+      this.model = model;
+      this.imt = imt;
+      this.vs30 = vs30;
+      this.returnPeriods = ImmutableList.copyOf(returnPeriods);
+      this.minLongitude = minLongitude;
+      this.maxLongitude = maxLongitude;
+      this.minLatitude = minLatitude;
+      this.maxLatitude = maxLatitude;
+      this.spacing = spacing;
+    }
+  }
+
+  /* Computes the ground motions at each return period for a grid node. */
+  private class NodeTask extends TimedTask<double[]> {
+
+    final RequestData data;
+    final CalcConfig config;
+    final double[] node;
+
+    NodeTask(
+        String url,
+        ServletContext context,
+        RequestData data,
+        CalcConfig config,
+        double[] node) {
+
+      super(url, context);
+      this.data = data;
+      this.config = config;
+      this.node = node;
+    }
+
+    @Override
+    double[] calc() throws Exception {
+      HazardCache.Key key = HazardCache.key(
+          ImmutableList.of(data.model),
+          node[1],
+          node[0],
+          data.vs30,
+          EnumSet.of(data.imt));
+      HazardCurves curves = ServletUtil.HAZARD_CACHE.get(key, () -> {
+        HazardModel model = modelCache.getUnchecked(data.model);
+        Site site = Site.builder()
+            .basinDataProvider(config.siteData.basinDataProvider)
+            .location(Location.create(node[1], node[0]))
+            .vs30(data.vs30.value())
+            .build();
+        return HazardCurves.of(HazardCalcs.hazard(model, config, site, executor));
+      });
+
+      /* Curves are annual rates of exceedance */
+      List<Double> imls = curves.xValues.get(data.imt);
+      List<Double> rates = curves.totals.get(data.imt).yValues();
+      double[] groundMotions = new double[data.returnPeriods.size()];
+      for (int i = 0; i < groundMotions.length; i++) {
+        groundMotions[i] = INTERPOLATOR.findX(imls, rates, 1.0 / data.returnPeriods.get(i));
+      }
+      return groundMotions;
+    }
+  }
+
+  /* Writes a CSV row per node, with periodic progress comments. */
+  private static final class MapWriter implements TaskStream.Writer<double[]> {
+
+    final String url;
+    final RequestData data;
+    final List<double[]> nodes;
+    final int progressInterval;
+    int completed;
+
+    MapWriter(String url, RequestData data, List<double[]> nodes) {
+      this.url = url;
+      this.data = data;
+      this.nodes = nodes;
+      this.progressInterval = Math.max(1, nodes.size() / PROGRESS_STEPS);
+    }
+
+    @Override
+    public void start(PrintWriter out) {
+      ServletUtil.writeCsvComment(out, "url", url);
+      ServletUtil.writeCsvComment(out, "model", data.model.name());
+      ServletUtil.writeCsvComment(out, "imt", data.imt.name());
+      ServletUtil.writeCsvComment(out, "vs30", data.vs30.value());
+      ServletUtil.writeCsvComment(out, "spacing", data.spacing);
+      ServletUtil.writeCsvComment(out, "nodes", nodes.size());
+      List<Object> header = new ArrayList<>();
+      header.add("longitude");
+      header.add("latitude");
+      header.addAll(data.returnPeriods);
+      ServletUtil.writeCsvRow(out, header);
+    }
+
+    @Override
+    public void result(PrintWriter out, int index, double[] groundMotions) {
+      double[] node = nodes.get(index);
+      ServletUtil.writeCsvRow(out, node[0], node[1], Doubles.asList(groundMotions));
+      progress(out);
+    }
+
+    @Override
+    public void error(PrintWriter out, int index, String message) {
+      double[] node = nodes.get(index);
+      ServletUtil.writeCsvComment(
+          out,
+          "error",
+          String.format("%s, %s: %s", node[0], node[1], message));
+      progress(out);
+    }
+
+    private void progress(PrintWriter out) {
+      completed++;
+      if (completed % progressInterval == 0 || completed == nodes.size()) {
+        ServletUtil.writeCsvComment(
+            out,
+            "progress",
+            String.format("%s/%s", completed, nodes.size()));
+      }
+    }
+  }
+}
@@ -1,35 +1,41 @@
 package gov.usgs.earthquake.nshmp.www;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
-import static gov.usgs.earthquake.nshmp.calc.HazardExport.curvesBySource;
-import static gov.usgs.earthquake.nshmp.www.ServletUtil.GSON;
 import static gov.usgs.earthquake.nshmp.www.ServletUtil.MODEL_CACHE_CONTEXT_ID;
 import static gov.usgs.earthquake.nshmp.www.ServletUtil.emptyRequest;
 import static gov.usgs.earthquake.nshmp.www.Util.readDouble;
+import static gov.usgs.earthquake.nshmp.www.Util.readInteger;
 import static gov.usgs.earthquake.nshmp.www.Util.readValue;
 import static gov.usgs.earthquake.nshmp.www.Util.readValues;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.EDITION;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.IMT;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.LATITUDE;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.LONGITUDE;
+import static gov.usgs.earthquake.nshmp.www.Util.Key.PRECISION;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.REGION;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.RETURNPERIOD;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.VS30;
 import static gov.usgs.earthquake.nshmp.www.meta.Region.CEUS;
 import static gov.usgs.earthquake.nshmp.www.meta.Region.COUS;
 import static gov.usgs.earthquake.nshmp.www.meta.Region.WUS;
+import static gov.usgs.earthquake.nshmp.www.meta.Util.round;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.time.ZonedDateTime;
-import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.OptionalDouble;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -37,6 +43,12 @@ import javax.servlet.http.HttpServletResponse;
 import com.google.common.base.Joiner;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import gov.usgs.earthquake.nshmp.calc.CalcConfig;
 import gov.usgs.earthquake.nshmp.calc.CalcConfig.Builder;
@@ -51,8 +63,11 @@ import gov.usgs.earthquake.nshmp.geo.Location;
 import gov.usgs.earthquake.nshmp.gmm.Imt;
 import gov.usgs.earthquake.nshmp.internal.Parsing;
 import gov.usgs.earthquake.nshmp.internal.Parsing.Delimiter;
+import gov.usgs.earthquake.nshmp.www.ServletUtil.ResultWriter;
 import gov.usgs.earthquake.nshmp.www.ServletUtil.TimedTask;
 import gov.usgs.earthquake.nshmp.www.ServletUtil.Timer;
+import gov.usgs.earthquake.nshmp.www.TaskScheduler.Lane;
+import gov.usgs.earthquake.nshmp.www.Util.Format;
 import gov.usgs.earthquake.nshmp.www.meta.Edition;
 import gov.usgs.earthquake.nshmp.www.meta.Metadata;
 import gov.usgs.earthquake.nshmp.www.meta.Region;
@@ -67,6 +82,7 @@ import gov.usgs.earthquake.nshmp.www.meta.Status;
 @WebServlet(
     name = "Hazard Service",
     description = "USGS NSHMP Hazard Curve Calculator",
+    asyncSupported = true,
     urlPatterns = {
         "/hazard",
         "/hazard/*" })
@@ -81,7 +97,7 @@ public final class HazardService extends NshmpServlet {
    * WUS models, otherwise it runs a single model. HazardService.RequestData
    * objects are common to both services, with the understanding that Optional
    * fields (1) 'imts' will always contain a Set<Imt> with a single entry for
-   * deagg, and that (2) 'returnPeriod' will be absent for hazard.
+   * deagg, and that (2) 'returnPeriods' will be empty for hazard.
    *
    * Nshmp-haz calculations are designed to leverage all available processors by
    * default distributing work using the ServletUtil.CALC_EXECUTOR. This can
@@ -95,8 +111,19 @@ public final class HazardService extends NshmpServlet {
    * retained, and multiple requests do not return until all are finished.
    *
    * To address this, requests of HazardService and DeaggService are submitted
-   * as tasks to the single-threaded ServletUtil.TASK_EXECUTOR and are processed
-   * one-at-a-time in the order received.
+   * as tasks to the ServletUtil.TASK_SCHEDULER. The scheduler runs a bounded
+   * number of tasks at one time (system property 'maxTasks'), taking tasks
+   * round-robin from per-service lanes so that long running deaggregations do
+   * not hold up quick hazard requests. Each running task is handed a share of
+   * the CALC_EXECUTOR threads (TimedTask.executor) that must be used in place
+   * of CALC_EXECUTOR itself.
+   *
+   * Hazard curves are deterministic for a given set of models, model versions,
+   * site and IMTs and are retained in the ServletUtil.HAZARD_CACHE (system
+   * property 'hazardCacheSize', in MB). Cache statistics are available at
+   * /util/cache. Hazard curves and deaggregation responses are also appended
+   * to the ServletUtil.RESULT_STORE, a file that survives redeploys (system
+   * properties 'resultStoreDir' and 'resultStoreSize', in MB).
    */
 
   /*
@@ -120,7 +147,6 @@ public final class HazardService extends NshmpServlet {
       throws ServletException, IOException {
 
     UrlHelper urlHelper = urlHelper(request, response);
-    String query = request.getQueryString();
     Optional<String> pathInfo = Optional.ofNullable(request.getPathInfo());
 
     if (emptyRequest(request)) {
@@ -146,7 +172,11 @@ public final class HazardService extends NshmpServlet {
 
     RequestData requestData;
     try {
-      if (query != null) {
+      Format format = Util.readFormat(request);
+      ResultWriter<Result> writer = (format == Format.COMPACT)
+          ? Result.compactWriter(readPrecision(request))
+          : ServletUtil.resultWriter(format, Result::writeCsv);
+      if (Util.isQueryRequest(request)) {
         /* process query '?' request */
         requestData = buildRequest(request);
       } else {
@@ -159,12 +189,17 @@ public final class HazardService extends NshmpServlet {
         requestData = buildRequest(params);
       }
 
-      /* Submit as task to job executor */
+      /* Submit as task to job executor; joins identical in-flight requests */
       HazardTask task = new HazardTask(urlHelper.url, getServletContext(), requestData);
-      Result result = ServletUtil.TASK_EXECUTOR.submit(task).get();
-      // GSON.toJson(result, response.getWriter()); TODO test and use elsewhere?
-      String resultStr = GSON.toJson(result);
-      response.getWriter().print(resultStr);
+      ListenableFuture<Result> result = ServletUtil.TASK_SCHEDULER.submit(
+          Lane.HAZARD,
+          requestData,
+          task);
+      ServletUtil.writeResult(
+          request.startAsync(request, response),
+          result,
+          urlHelper.url,
+          writer);
 
     } catch (Exception e) {
       String message = Metadata.errorMessage(urlHelper.url, e, false);
@@ -173,6 +208,20 @@ public final class HazardService extends NshmpServlet {
     }
   }
 
+  /* Significant figures of compact curve values. */
+  private static int readPrecision(HttpServletRequest request) {
+    if (request.getParameter(PRECISION.toString()) == null) {
+      return COMPACT_PRECISION;
+    }
+    int precision = readInteger(PRECISION, request);
+    checkArgument(
+        precision > 0 && precision <= COMPACT_PRECISION,
+        "Precision [%s] not in range [1..%s]", precision, COMPACT_PRECISION);
+    return precision;
+  }
+
+  private static final int COMPACT_PRECISION = 8;
+
   /*
    * Reduce query string key-value pairs. This method is shared with deagg.
    * Deagg must supply a single Imt. See RequestData notes below.
@@ -193,11 +242,11 @@ public final class HazardService extends NshmpServlet {
     Set<Imt> imts = paramMap.containsKey(IMT.toString())
         ? readValues(IMT, request, Imt.class)
         : supportedImts;
-    OptionalDouble returnPeriod = OptionalDouble.empty();
+    List<Double> returnPeriods = ImmutableList.of();
 
-    /* Possibly update for deagg. */
+    /* Possibly update for deagg; return periods may be a list. */
     if (paramMap.containsKey(RETURNPERIOD.toString())) {
-      returnPeriod = OptionalDouble.of(readDouble(RETURNPERIOD, request));
+      returnPeriods = readReturnPeriods(readValues(RETURNPERIOD, request));
     }
 
     return new RequestData(
@@ -207,7 +256,7 @@ public final class HazardService extends NshmpServlet {
         lat,
         imts,
         vs30,
-        returnPeriod);
+        returnPeriods);
   }
 
   /*
@@ -228,11 +277,11 @@ public final class HazardService extends NshmpServlet {
     Set<Imt> imts = (params.get(4).equalsIgnoreCase("any"))
         ? supportedImts
         : readValues(params.get(4), Imt.class);
-    OptionalDouble returnPeriod = OptionalDouble.empty();
+    List<Double> returnPeriods = ImmutableList.of();
 
-    /* Possibly update for deagg. */
+    /* Possibly update for deagg; return periods may be a list. */
     if (params.size() == 7) {
-      returnPeriod = OptionalDouble.of(Double.valueOf(params.get(6)));
+      returnPeriods = readReturnPeriods(params.get(6));
     }
 
     return new RequestData(
@@ -242,7 +291,17 @@ public final class HazardService extends NshmpServlet {
         lat,
         imts,
         vs30,
-        returnPeriod);
+        returnPeriods);
+  }
+
+  /* Comma-delimited and/or repeated deagg return periods. */
+  static List<Double> readReturnPeriods(String... values) {
+    List<Double> returnPeriods = Util.readDoubles(values);
+    checkArgument(!returnPeriods.isEmpty(), "No return periods specified");
+    for (double returnPeriod : returnPeriods) {
+      checkArgument(returnPeriod > 0, "Invalid return period [%s]", returnPeriod);
+    }
+    return ImmutableList.copyOf(returnPeriods);
   }
 
   private static class HazardTask extends TimedTask<Result> {
@@ -254,20 +313,35 @@ public final class HazardService extends NshmpServlet {
       this.data = data;
     }
 
+    @Override
+    Result attach(Result result) {
+      Object server = Metadata.serverData(ServletUtil.THREAD_COUNT, timer);
+      return new Result(url, server, result.response);
+    }
+
     @Override
     Result calc() throws Exception {
-      Hazard hazard = calcHazard(data, context);
+      HazardCache.Key key = HazardCache.key(
+          models(data),
+          data.latitude,
+          data.longitude,
+          data.vs30,
+          data.imts);
+      HazardCurves curves = ServletUtil.HAZARD_CACHE.get(
+          key,
+          () -> HazardCurves.of(calcHazard(data, context, executor)));
       return new Result.Builder()
           .requestData(data)
           .url(url)
           .timer(timer)
-          .hazard(hazard)
+          .hazard(curves)
           .build();
     }
   }
 
   /* Also used by DeaggService */
-  static Hazard calcHazard(RequestData data, ServletContext context) {
+  static Hazard calcHazard(RequestData data, ServletContext context, Executor executor)
+      throws Exception {
 
     Location loc = Location.create(data.latitude, data.longitude);
     Site.Builder siteBuilder = Site.builder().location(loc).vs30(data.vs30.value());
@@ -278,8 +352,7 @@ public final class HazardService extends NshmpServlet {
 
     // TODO cache calls should be using checked get(id)
 
-    // May include trailing 'B' for 2014B
-    String baseYear = data.edition.name().substring(1);
+    List<Model> models = models(data);
 
     /*
      * When combining (merging) Hazard, the config from the first supplied
@@ -291,37 +364,59 @@ public final class HazardService extends NshmpServlet {
      * use the WUS 3σ truncation exceedance model in the CEUS-WUS overlap zone.
      * However, it is important to have the WUS result be first in the merge()
      * call below.
+     *
+     * WUS and CEUS are evaluated concurrently, sharing the executor, so that
+     * the tail of one calculation does not leave threads idle; the merge runs
+     * once both complete. See ServletUtil.calcAll().
      */
     if (data.region == COUS) {
 
-      Model wusId = Model.valueOf(WUS.name() + "_" + baseYear);
-      HazardModel wusModel = modelCache.getUnchecked(wusId);
+      HazardModel wusModel = modelCache.getUnchecked(models.get(0));
       Site site = siteBuilder
           .basinDataProvider(wusModel.config().siteData.basinDataProvider)
           .build();
-      Hazard wusResult = process(wusModel, site, data.imts);
+      HazardModel ceusModel = modelCache.getUnchecked(models.get(1));
 
-      String ceusYear = baseYear.equals("2014B") ? "2014" : baseYear;
-      Model ceusId = Model.valueOf(CEUS.name() + "_" + ceusYear);
-      HazardModel ceusModel = modelCache.getUnchecked(ceusId);
-      Hazard ceusResult = process(ceusModel, site, data.imts);
+      List<Hazard> results = ServletUtil.calcAll(ImmutableList.<Callable<Hazard>> of(
+          () -> process(wusModel, site, data.imts, executor),
+          () -> process(ceusModel, site, data.imts, executor)));
 
-      return Hazard.merge(wusResult, ceusResult);
+      return Hazard.merge(results.get(0), results.get(1));
     }
 
+    HazardModel model = modelCache.getUnchecked(models.get(0));
+    Site site = siteBuilder.basinDataProvider(model.config().siteData.basinDataProvider).build();
+    return process(model, site, data.imts, executor);
+  }
+
+  /*
+   * The models used to compute hazard for a request; for COUS, the WUS model
+   * is first. Editions may include a trailing 'B' (e.g. 2014B) that only
+   * applies to WUS.
+   */
+  static List<Model> models(RequestData data) {
+    String baseYear = data.edition.name().substring(1);
+    if (data.region == COUS) {
+      String ceusYear = baseYear.equals("2014B") ? "2014" : baseYear;
+      return ImmutableList.of(
+          Model.valueOf(WUS.name() + "_" + baseYear),
+          Model.valueOf(CEUS.name() + "_" + ceusYear));
+    }
     String year = (baseYear.equals("2014B") && data.region == Region.CEUS)
         ? "2014" : baseYear;
-    Model modelId = Model.valueOf(data.region.name() + "_" + year);
-    HazardModel model = modelCache.getUnchecked(modelId);
-    Site site = siteBuilder.basinDataProvider(model.config().siteData.basinDataProvider).build();
-    return process(model, site, data.imts);
+    return ImmutableList.of(Model.valueOf(data.region.name() + "_" + year));
   }
 
-  private static Hazard process(HazardModel model, Site site, Set<Imt> imts) {
+  private static Hazard process(
+      HazardModel model,
+      Site site,
+      Set<Imt> imts,
+      Executor executor) {
+
     Builder configBuilder = CalcConfig.Builder.copyOf(model.config());
     configBuilder.imts(imts);
     CalcConfig config = configBuilder.build();
-    return HazardCalcs.hazard(model, config, site, ServletUtil.CALC_EXECUTOR);
+    return HazardCalcs.hazard(model, config, site, executor);
   }
 
   /*
@@ -335,8 +430,8 @@ public final class HazardService extends NshmpServlet {
    * which will be derived from the singleton imt URL argument as before, but
    * hazard will always be computed across the set of Imts supplied so that the
    * cms at the deaggImt can be computed. Under the hood the deagg application
-   * provides support for all specified Imts. Also note that the presence of a
-   * 'return period' is used to flag deagg service requests.
+   * provides support for all specified Imts. Also note that the presence of
+   * one or more return periods is used to flag deagg service requests.
    */
   static final class RequestData {
 
@@ -346,7 +441,7 @@ public final class HazardService extends NshmpServlet {
     final double longitude;
     final Set<Imt> imts;
     final Vs30 vs30;
-    final OptionalDouble returnPeriod;
+    final List<Double> returnPeriods;
 
     RequestData(
         Edition edition,
@@ -355,7 +450,7 @@ public final class HazardService extends NshmpServlet {
         double latitude,
         Set<Imt> imts,
         Vs30 vs30,
-        OptionalDouble returnPeriod) {
+        List<Double> returnPeriods) {
 
       this.edition = edition;
       this.region = region;
@@ -363,7 +458,34 @@ public final class HazardService extends NshmpServlet {
       this.longitude = longitude;
       this.imts = imts;
       this.vs30 = vs30;
-      this.returnPeriod = returnPeriod;
+      this.returnPeriods = returnPeriods;
+    }
+
+    /*
+     * Requests are equal if they would yield the same Hazard (or Deaggregation)
+     * and may be used to identify identical, in-flight calculations.
+     */
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof RequestData)) {
+        return false;
+      }
+      RequestData that = (RequestData) obj;
+      return edition == that.edition &&
+          region == that.region &&
+          Double.compare(latitude, that.latitude) == 0 &&
+          Double.compare(longitude, that.longitude) == 0 &&
+          imts.equals(that.imts) &&
+          vs30 == that.vs30 &&
+          returnPeriods.equals(that.returnPeriods);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(edition, region, latitude, longitude, imts, vs30, returnPeriods);
     }
   }
 
@@ -377,6 +499,7 @@ public final class HazardService extends NshmpServlet {
     final Vs30 vs30;
     final String xlabel = "Ground Motion (g)";
     final String ylabel = "Annual Frequency of Exceedence";
+    @JsonAdapter(ServletUtil.DoubleListAdapter.class)
     final List<Double> xvalues;
 
     ResponseData(RequestData request, Imt imt, List<Double> xvalues) {
@@ -401,6 +524,7 @@ public final class HazardService extends NshmpServlet {
     }
   }
 
+  @JsonAdapter(Curve.Adapter.class)
   private static final class Curve {
 
     final String component;
@@ -410,6 +534,39 @@ public final class HazardService extends NshmpServlet {
       this.component = component;
       this.yvalues = yvalues;
     }
+
+    static final class Adapter extends TypeAdapter<Curve> {
+
+      @Override
+      public void write(JsonWriter out, Curve curve) throws IOException {
+        out.beginObject();
+        out.name("component").value(curve.component);
+        out.name("yvalues");
+        ServletUtil.writeDoubles(out, curve.yvalues);
+        out.endObject();
+      }
+
+      @Override
+      public Curve read(JsonReader in) throws IOException {
+        String component = null;
+        List<Double> yvalues = null;
+        in.beginObject();
+        while (in.hasNext()) {
+          switch (in.nextName()) {
+            case "component":
+              component = ServletUtil.readString(in);
+              break;
+            case "yvalues":
+              yvalues = ServletUtil.readDoubles(in);
+              break;
+            default:
+              in.skipValue();
+          }
+        }
+        in.endObject();
+        return new Curve(component, yvalues);
+      }
+    }
   }
 
   private static final String TOTAL_KEY = "Total";
@@ -438,36 +595,11 @@ public final class HazardService extends NshmpServlet {
       Map<Imt, XySequence> totalMap;
       Map<Imt, List<Double>> xValuesLinearMap;
 
-      Builder hazard(Hazard hazardResult) {
+      Builder hazard(HazardCurves curves) {
         checkState(totalMap == null, "Hazard has already been added to this builder");
-
-        componentMaps = new EnumMap<>(Imt.class);
-        totalMap = new EnumMap<>(Imt.class);
-        xValuesLinearMap = new EnumMap<>(Imt.class);
-
-        Map<Imt, Map<SourceType, XySequence>> typeTotalMaps = curvesBySource(hazardResult);
-
-        for (Imt imt : hazardResult.curves().keySet()) {
-
-          // total curve
-          hazardResult.curves().get(imt).addToMap(imt, totalMap);
-
-          // component curves
-          Map<SourceType, XySequence> typeTotalMap = typeTotalMaps.get(imt);
-          Map<SourceType, XySequence> componentMap = componentMaps.get(imt);
-          if (componentMap == null) {
-            componentMap = new EnumMap<>(SourceType.class);
-            componentMaps.put(imt, componentMap);
-          }
-
-          for (SourceType type : typeTotalMap.keySet()) {
-            typeTotalMap.get(type).addToMap(type, componentMap);
-          }
-
-          xValuesLinearMap.put(
-              imt,
-              hazardResult.config().hazard.modelCurve(imt).xValues());
-        }
+        componentMaps = curves.components;
+        totalMap = curves.totals;
+        xValuesLinearMap = curves.xValues;
         return this;
       }
 
@@ -523,5 +655,113 @@ public final class HazardService extends NshmpServlet {
         return new Result(url, server, responseList);
       }
     }
+
+    /*
+     * Compact JSON response, for clients that request many IMTs or sites:
+     * request metadata is written once, model curve x-values (IML grids) are
+     * written once and referenced by index, and the curves of each IMT are
+     * concatenated into a single array, in 'components' order, rounded to the
+     * requested number of significant figures. Output is not indented.
+     */
+    static ResultWriter<Result> compactWriter(int precision) {
+      return (result, response) -> writeCompact(result, response, precision);
+    }
+
+    private static void writeCompact(
+        Result result,
+        ServletResponse response,
+        int precision) throws IOException {
+
+      Gson gson = ServletUtil.GSON;
+      JsonWriter out = new JsonWriter(response.getWriter());
+
+      Map<List<Double>, Integer> imlGrids = new LinkedHashMap<>();
+      for (Response imtResponse : result.response) {
+        imlGrids.putIfAbsent(imtResponse.metadata.xvalues, imlGrids.size());
+      }
+
+      out.beginObject();
+      out.name("status").value(result.status);
+      out.name("date").value(result.date);
+      out.name("url").value(result.url);
+      out.name("server");
+      gson.toJson(result.server, result.server.getClass(), out);
+
+      if (!result.response.isEmpty()) {
+        ResponseData metadata = result.response.get(0).metadata;
+        out.name("metadata").beginObject();
+        out.name("edition");
+        gson.toJson(metadata.edition, Edition.class, out);
+        out.name("region");
+        gson.toJson(metadata.region, Region.class, out);
+        out.name("latitude").value(metadata.latitude);
+        out.name("longitude").value(metadata.longitude);
+        out.name("vs30");
+        gson.toJson(metadata.vs30, Vs30.class, out);
+        out.name("xlabel").value(metadata.xlabel);
+        out.name("ylabel").value(metadata.ylabel);
+        out.name("precision").value(precision);
+        out.endObject();
+      }
+
+      out.name("imls").beginArray();
+      for (List<Double> imls : imlGrids.keySet()) {
+        ServletUtil.writeDoubles(out, imls);
+      }
+      out.endArray();
+
+      out.name("response").beginArray();
+      for (Response imtResponse : result.response) {
+        out.beginObject();
+        out.name("imt");
+        gson.toJson(imtResponse.metadata.imt, Imt.class, out);
+        out.name("imls").value(imlGrids.get(imtResponse.metadata.xvalues));
+        out.name("components").beginArray();
+        for (Curve curve : imtResponse.data) {
+          out.value(curve.component);
+        }
+        out.endArray();
+        out.name("yvalues").beginArray();
+        for (Curve curve : imtResponse.data) {
+          for (double y : curve.yvalues) {
+            out.value(round(y, precision));
+          }
+        }
+        out.endArray();
+        out.endObject();
+      }
+      out.endArray();
+      out.endObject();
+      out.flush();
+    }
+
+    /*
+     * CSV response: request metadata as comments followed by the model curve
+     * x-values and the total and component curves of each IMT, one per row.
+     */
+    static void writeCsv(Result result, ServletResponse response) throws IOException {
+      response.setContentType(ServletUtil.CSV_CONTENT_TYPE);
+      PrintWriter out = response.getWriter();
+      ServletUtil.writeCsvComment(out, "url", result.url);
+      ServletUtil.writeCsvComment(out, "date", result.date);
+      if (!result.response.isEmpty()) {
+        ResponseData metadata = result.response.get(0).metadata;
+        ServletUtil.writeCsvComment(out, "edition", metadata.edition);
+        ServletUtil.writeCsvComment(out, "region", metadata.region);
+        ServletUtil.writeCsvComment(out, "latitude", metadata.latitude);
+        ServletUtil.writeCsvComment(out, "longitude", metadata.longitude);
+        ServletUtil.writeCsvComment(out, "vs30", metadata.vs30);
+        ServletUtil.writeCsvComment(out, "xvalues", metadata.xlabel);
+        ServletUtil.writeCsvComment(out, "yvalues", metadata.ylabel);
+      }
+      ServletUtil.writeCsvRow(out, "imt", "component", "values");
+      for (Response imtResponse : result.response) {
+        String imt = imtResponse.metadata.imt.name();
+        ServletUtil.writeCsvRow(out, imt, "xvalues", imtResponse.metadata.xvalues);
+        for (Curve curve : imtResponse.data) {
+          ServletUtil.writeCsvRow(out, imt, curve.component, curve.yvalues);
+        }
+      }
+    }
   }
 }
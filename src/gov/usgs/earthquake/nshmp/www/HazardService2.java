@@ -1,31 +1,46 @@
 package gov.usgs.earthquake.nshmp.www;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
-import static gov.usgs.earthquake.nshmp.calc.HazardExport.curvesBySource;
-import static gov.usgs.earthquake.nshmp.www.ServletUtil.GSON;
 import static gov.usgs.earthquake.nshmp.www.ServletUtil.MODEL_CACHE_CONTEXT_ID;
 import static gov.usgs.earthquake.nshmp.www.ServletUtil.emptyRequest;
 import static gov.usgs.earthquake.nshmp.www.Util.readDouble;
-import static gov.usgs.earthquake.nshmp.www.Util.readValue;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.LATITUDE;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.LONGITUDE;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.MODEL;
 import static gov.usgs.earthquake.nshmp.www.Util.Key.VS30;
+import static java.util.stream.Collectors.joining;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import gov.usgs.earthquake.nshmp.calc.CalcConfig;
 import gov.usgs.earthquake.nshmp.calc.CalcConfig.Builder;
@@ -40,9 +55,12 @@ import gov.usgs.earthquake.nshmp.geo.Location;
 import gov.usgs.earthquake.nshmp.gmm.Imt;
 import gov.usgs.earthquake.nshmp.internal.Parsing;
 import gov.usgs.earthquake.nshmp.internal.Parsing.Delimiter;
+import gov.usgs.earthquake.nshmp.www.ServletUtil.ResultWriter;
 import gov.usgs.earthquake.nshmp.www.ServletUtil.TimedTask;
 import gov.usgs.earthquake.nshmp.www.ServletUtil.Timer;
 import gov.usgs.earthquake.nshmp.www.SourceServices.SourceModel;
+import gov.usgs.earthquake.nshmp.www.TaskScheduler.Lane;
+import gov.usgs.earthquake.nshmp.www.Util.Format;
 import gov.usgs.earthquake.nshmp.www.meta.Metadata;
 import gov.usgs.earthquake.nshmp.www.meta.Status;
 
@@ -55,6 +73,7 @@ import gov.usgs.earthquake.nshmp.www.meta.Status;
 @WebServlet(
     name = "Hazard Service 2",
     description = "USGS NSHMP Hazard Curve Calculator",
+    asyncSupported = true,
     urlPatterns = {
         "/haz",
         "/haz/*" })
@@ -65,8 +84,10 @@ public final class HazardService2 extends NshmpServlet {
    *
    * Updated hazard service that identifies models directly, instead of
    * editions, to simplify model comparison. Models are defined by a region and
-   * year. This service computes hazard for all supported IMTs and a single
-   * vs30.
+   * year. This service computes hazard for all supported IMTs and one or more
+   * vs30s: a comma-delimited list or 'all' of the site classes supported by
+   * the model. Site classes are evaluated concurrently, sharing the model and
+   * its config; see ServletUtil.calcAll(). Curves are cached per site class.
    * 
    * As with the existing hazard service, calculations are designed to leverage
    * all available processors by default, distributing work using the
@@ -80,14 +101,33 @@ public final class HazardService2 extends NshmpServlet {
    * memory problems as too many results are retained, and multiple requests do
    * not return until all are finished.
    *
-   * To address this, requests are submitted as tasks to the single-threaded
-   * ServletUtil.TASK_EXECUTOR and are processed one-at-a-time in the order
-   * received.
+   * To address this, requests are submitted as tasks to the
+   * ServletUtil.TASK_SCHEDULER, which runs a bounded number of tasks at one
+   * time, each with a share of the CALC_EXECUTOR threads; see HazardService.
    * 
-   * TODO Add support for multi model requests in order to combine models per
-   * the original hazard service.
+   * Batch requests POST a list of sites, as CSV with a header row or as a JSON
+   * array of objects, with 'longitude', 'latitude', and optionally 'vs30'
+   * fields; vs30 may instead be supplied as a query parameter for all sites.
+   * Hazard is computed at each site for each model in the 'model' query
+   * parameter. A CalcConfig is built once per model and shared by all sites,
+   * and each site is scheduled as a separate task (see TaskStream) so that
+   * several sites run at once and results, one per site and model, are
+   * streamed back as each completes: as NDJSON (one JSON object per line) or,
+   * with format=csv, as CSV. Results include the index of the site in the
+   * request as sites complete out of order.
+   *
+   * GET requests may supply a comma-delimited list of models, e.g. for sites
+   * in the CEUS-WUS overlap zone, that are combined per the original hazard
+   * service. Models are evaluated concurrently, sharing the task's portion of
+   * the CALC_EXECUTOR (see ServletUtil.calcAll()), and merged with
+   * Hazard.merge(); model order is significant as the config of the first
+   * model is used when merging. Only the IMTs and site classes supported by
+   * all models are available. Batch requests instead return hazard for each
+   * model separately.
    */
 
+  private static final String ALL_VS30 = "all";
+
   private LoadingCache<Model, HazardModel> modelCache;
 
   private static final String USAGE = SourceServices.GSON.toJson(
@@ -115,12 +155,72 @@ public final class HazardService2 extends NshmpServlet {
     }
 
     try {
-      RequestData requestData = buildRequestData(request);
+      List<RequestData> requestData = buildRequestData(request);
+      ResultWriter<Result> writer = ServletUtil.resultWriter(
+          Util.readFormat(request),
+          Result::writeCsv);
 
-      /* Submit as task to job executor */
+      /* Submit as task to job executor; joins identical in-flight requests */
       Hazard2Task task = new Hazard2Task(urlHelper.url, getServletContext(), requestData);
-      Result result = ServletUtil.TASK_EXECUTOR.submit(task).get();
-      GSON.toJson(result, response.getWriter());
+      ListenableFuture<Result> result = ServletUtil.TASK_SCHEDULER.submit(
+          Lane.HAZARD,
+          requestData,
+          task);
+      ServletUtil.writeResult(
+          request.startAsync(request, response),
+          result,
+          urlHelper.url,
+          writer);
+
+    } catch (Exception e) {
+      String message = Metadata.errorMessage(urlHelper.url, e, false);
+      response.getWriter().print(message);
+      getServletContext().log(urlHelper.url, e);
+    }
+  }
+
+  @Override
+  protected void doPost(
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws ServletException, IOException {
+
+    UrlHelper urlHelper = urlHelper(request, response);
+
+    try {
+      List<Model> models = readModels(request);
+      String defaultVs30 = request.getParameter(VS30.toString());
+      List<Map<String, String>> rows = BatchRequest.readRows(request);
+
+      /* Each site and model is a separate request; models are not merged. */
+      List<RequestData> sites = new ArrayList<>(rows.size() * models.size());
+      for (int i = 0; i < rows.size(); i++) {
+        double lon = BatchRequest.doubleValue(rows, i, LONGITUDE.toString());
+        double lat = BatchRequest.doubleValue(rows, i, LATITUDE.toString());
+        Vs30 vs30 = (defaultVs30 != null && !rows.get(i).containsKey(VS30.toString()))
+            ? Vs30.fromValue(Double.valueOf(defaultVs30))
+            : Vs30.fromValue(BatchRequest.doubleValue(rows, i, VS30.toString()));
+        for (Model model : models) {
+          sites.add(new RequestData(ImmutableList.of(model), lon, lat, vs30));
+        }
+      }
+
+      Map<Model, CalcConfig> configs = new EnumMap<>(Model.class);
+      for (Model model : models) {
+        configs.put(model, config(model, model.imts));
+      }
+
+      boolean csv = Util.readFormat(request) == Format.CSV;
+      response.setContentType(
+          csv ? ServletUtil.CSV_CONTENT_TYPE : ServletUtil.NDJSON_CONTENT_TYPE);
+      TaskStream.respond(
+          request,
+          response,
+          urlHelper,
+          Lane.HAZARD,
+          sites.size(),
+          i -> new BatchTask(urlHelper.url, getServletContext(), sites.get(i), configs),
+          new BatchWriter(sites, models.size(), csv));
 
     } catch (Exception e) {
       String message = Metadata.errorMessage(urlHelper.url, e, false);
@@ -129,72 +229,163 @@ public final class HazardService2 extends NshmpServlet {
     }
   }
 
-  /* Reduce query string key-value pairs. */
-  static RequestData buildRequestData(HttpServletRequest request) {
+  /* Comma-delimited and/or repeated 'model' parameters. */
+  private static List<Model> readModels(HttpServletRequest request) {
+    return Arrays.stream(Util.readValues(MODEL, request))
+        .flatMap(models -> Parsing.splitToList(models, Delimiter.COMMA).stream())
+        .map(Model::valueOf)
+        .distinct()
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  /* Reduce query string key-value pairs; one RequestData per vs30. */
+  static List<RequestData> buildRequestData(HttpServletRequest request) {
 
     try {
 
-      Model model;
+      List<Model> models;
       double lon;
       double lat;
-      Vs30 vs30;
+      List<Vs30> vs30s;
 
-      if (request.getQueryString() != null) {
+      if (Util.isQueryRequest(request)) {
         /* process query '?' request */
-        model = readValue(MODEL, request, Model.class);
+        models = readModels(request);
         lon = readDouble(LONGITUDE, request);
         lat = readDouble(LATITUDE, request);
-        vs30 = Vs30.fromValue(readDouble(VS30, request));
+        vs30s = readVs30s(models, Util.readValues(VS30, request));
 
       } else {
         /* process slash-delimited request */
         List<String> params = Parsing.splitToList(
             request.getPathInfo(),
             Delimiter.SLASH);
-        model = Model.valueOf(params.get(0));
+        models = Parsing.splitToList(params.get(0), Delimiter.COMMA).stream()
+            .map(Model::valueOf)
+            .distinct()
+            .collect(ImmutableList.toImmutableList());
         lon = Double.valueOf(params.get(1));
         lat = Double.valueOf(params.get(2));
-        vs30 = Vs30.fromValue(Double.valueOf(params.get(3)));
+        vs30s = readVs30s(models, params.get(3));
       }
 
-      return new RequestData(
-          model,
-          lon,
-          lat,
-          vs30);
+      return vs30s.stream()
+          .map(vs30 -> new RequestData(models, lon, lat, vs30))
+          .collect(ImmutableList.toImmutableList());
 
     } catch (Exception e) {
       throw new IllegalArgumentException("Error parsing request URL", e);
     }
   }
 
+  /* 'all' site classes supported by all models, or comma-delimited and/or repeated values. */
+  private static List<Vs30> readVs30s(List<Model> models, String... values) {
+    if (values.length == 1 && values[0].equalsIgnoreCase(ALL_VS30)) {
+      return models.get(0).vs30s.stream()
+          .filter(vs30 -> models.stream().allMatch(model -> model.vs30s.contains(vs30)))
+          .collect(ImmutableList.toImmutableList());
+    }
+    return Util.readDoubles(values).stream()
+        .map(Vs30::fromValue)
+        .distinct()
+        .collect(ImmutableList.toImmutableList());
+  }
+
   private class Hazard2Task extends TimedTask<Result> {
 
-    final RequestData data;
+    final List<RequestData> data;
 
-    Hazard2Task(String url, ServletContext context, RequestData data) {
+    Hazard2Task(String url, ServletContext context, List<RequestData> data) {
       super(url, context);
       this.data = data;
     }
 
+    @Override
+    Result attach(Result result) {
+      Object server = Metadata.serverData(ServletUtil.THREAD_COUNT, timer);
+      return new Result(url, server, result.response);
+    }
+
     @Override
     Result calc() throws Exception {
-      Hazard hazard = calcHazard(data, context);
-      return new Result.Builder()
-          .requestData(data)
+      Map<Model, CalcConfig> configs = new EnumMap<>(Model.class);
+      for (Model model : data.get(0).models) {
+        configs.put(model, config(model, data.get(0).imts));
+      }
+      List<Callable<HazardCurves>> calcs = new ArrayList<>(data.size());
+      for (RequestData request : data) {
+        calcs.add(() -> calcCurves(request, configs, executor));
+      }
+      List<HazardCurves> curves = ServletUtil.calcAll(calcs);
+      Result.Builder builder = new Result.Builder()
           .url(url)
-          .timer(timer)
-          .hazard(hazard)
-          .build();
+          .timer(timer);
+      for (int i = 0; i < data.size(); i++) {
+        builder.hazard(data.get(i), curves.get(i));
+      }
+      return builder.build();
+    }
+  }
+
+  /* A single site and model of a batch request. */
+  private class BatchTask extends TimedTask<HazardCurves> {
+
+    final RequestData data;
+    final Map<Model, CalcConfig> configs;
+
+    BatchTask(
+        String url,
+        ServletContext context,
+        RequestData data,
+        Map<Model, CalcConfig> configs) {
+
+      super(url, context);
+      this.data = data;
+      this.configs = configs;
     }
+
+    @Override
+    HazardCurves calc() throws Exception {
+      return calcCurves(data, configs, executor);
+    }
+  }
+
+  /*
+   * Hazard curves of a request, with multiple models evaluated concurrently
+   * and merged.
+   */
+  HazardCurves calcCurves(
+      RequestData data,
+      Map<Model, CalcConfig> configs,
+      Executor executor) throws Exception {
+
+    HazardCache.Key key = HazardCache.key(
+        data.models,
+        data.latitude,
+        data.longitude,
+        data.vs30,
+        data.imts);
+    return ServletUtil.HAZARD_CACHE.get(key, () -> {
+      List<Callable<Hazard>> calcs = new ArrayList<>(data.models.size());
+      for (Model model : data.models) {
+        calcs.add(() -> calcHazard(model, data, configs.get(model), executor));
+      }
+      List<Hazard> hazards = ServletUtil.calcAll(calcs);
+      return HazardCurves.of(Hazard.merge(hazards.toArray(new Hazard[hazards.size()])));
+    });
   }
 
-  Hazard calcHazard(RequestData data, ServletContext context) {
+  /* The model config, restricted to the supplied IMTs. */
+  CalcConfig config(Model model, Set<Imt> imts) {
+    HazardModel hazardModel = modelCache.getUnchecked(model);
+    Builder configBuilder = CalcConfig.Builder.copyOf(hazardModel.config());
+    configBuilder.imts(imts);
+    return configBuilder.build();
+  }
+
+  Hazard calcHazard(Model model, RequestData data, CalcConfig config, Executor executor) {
     Location loc = Location.create(data.latitude, data.longitude);
-    HazardModel model = modelCache.getUnchecked(data.model);
-    Builder configBuilder = CalcConfig.Builder.copyOf(model.config());
-    configBuilder.imts(data.model.imts);
-    CalcConfig config = configBuilder.build();
+    HazardModel hazardModel = modelCache.getUnchecked(model);
 
     Site site = Site.builder()
         .basinDataProvider(config.siteData.basinDataProvider)
@@ -202,42 +393,200 @@ public final class HazardService2 extends NshmpServlet {
         .vs30(data.vs30.value())
         .build();
 
-    return HazardCalcs.hazard(model, config, site, ServletUtil.CALC_EXECUTOR);
+    return HazardCalcs.hazard(hazardModel, config, site, executor);
+  }
+
+  /*
+   * Batch result writer. A result is identified by site index and model and
+   * includes, for each IMT, the model curve x-values and the total and
+   * component curves. Failed sites are reported with an error message.
+   */
+  private static final class BatchWriter implements TaskStream.Writer<HazardCurves> {
+
+    final List<RequestData> sites;
+    final int modelCount;
+    final boolean csv;
+
+    BatchWriter(List<RequestData> sites, int modelCount, boolean csv) {
+      this.sites = sites;
+      this.modelCount = modelCount;
+      this.csv = csv;
+    }
+
+    @Override
+    public void start(PrintWriter out) {
+      if (csv) {
+        ServletUtil.writeCsvRow(
+            out,
+            "site", "model", "longitude", "latitude", "vs30", "imt", "component", "values");
+      }
+    }
+
+    @Override
+    public void result(PrintWriter out, int index, HazardCurves curves) throws IOException {
+      RequestData site = sites.get(index);
+      int siteIndex = index / modelCount;
+      if (csv) {
+        for (Imt imt : curves.totals.keySet()) {
+          writeCsvRow(out, siteIndex, site, imt, "xvalues", curves.xValues.get(imt));
+          writeCsvRow(out, siteIndex, site, imt, TOTAL_KEY, curves.totals.get(imt).yValues());
+          for (Entry<SourceType, XySequence> entry : curves.components.get(imt).entrySet()) {
+            writeCsvRow(
+                out, siteIndex, site, imt, entry.getKey().toString(), entry.getValue().yValues());
+          }
+        }
+        return;
+      }
+      JsonWriter json = beginJson(out, siteIndex, site);
+      json.name("curves").beginArray();
+      for (Imt imt : curves.totals.keySet()) {
+        json.beginObject();
+        json.name("imt").value(imt.name());
+        json.name("xvalues");
+        ServletUtil.writeDoubles(json, curves.xValues.get(imt));
+        json.name("components").beginObject();
+        json.name(TOTAL_KEY);
+        ServletUtil.writeDoubles(json, curves.totals.get(imt).yValues());
+        for (Entry<SourceType, XySequence> entry : curves.components.get(imt).entrySet()) {
+          json.name(entry.getKey().toString());
+          ServletUtil.writeDoubles(json, entry.getValue().yValues());
+        }
+        json.endObject();
+        json.endObject();
+      }
+      json.endArray();
+      endJson(out, json);
+    }
+
+    @Override
+    public void error(PrintWriter out, int index, String message) throws IOException {
+      RequestData site = sites.get(index);
+      int siteIndex = index / modelCount;
+      if (csv) {
+        writeCsvRow(out, siteIndex, site, null, "error", message);
+        return;
+      }
+      JsonWriter json = beginJson(out, siteIndex, site);
+      json.name("error").value(message);
+      endJson(out, json);
+    }
+
+    private static void writeCsvRow(
+        PrintWriter out,
+        int siteIndex,
+        RequestData site,
+        Imt imt,
+        String component,
+        Object values) {
+
+      ServletUtil.writeCsvRow(
+          out,
+          siteIndex,
+          site.models.get(0).name(),
+          site.longitude,
+          site.latitude,
+          site.vs30.value(),
+          (imt == null) ? null : imt.name(),
+          component,
+          values);
+    }
+
+    private static JsonWriter beginJson(
+        PrintWriter out,
+        int siteIndex,
+        RequestData site) throws IOException {
+
+      JsonWriter json = new JsonWriter(out);
+      json.beginObject();
+      json.name("site").value(siteIndex);
+      json.name("model").value(site.models.get(0).name());
+      json.name("longitude").value(site.longitude);
+      json.name("latitude").value(site.latitude);
+      json.name("vs30").value(site.vs30.value());
+      return json;
+    }
+
+    private static void endJson(PrintWriter out, JsonWriter json) throws IOException {
+      json.endObject();
+      json.flush();
+      out.print('\n');
+    }
   }
 
+  /*
+   * Model order is significant; the config of the first model is used when
+   * merging Hazard. Batch requests have a single model.
+   */
   static final class RequestData {
 
-    final Model model;
+    final List<Model> models;
     final double latitude;
     final double longitude;
     final Vs30 vs30;
+    final Set<Imt> imts;
 
     RequestData(
-        Model model,
+        List<Model> models,
         double longitude,
         double latitude,
         Vs30 vs30) {
 
-      this.model = model;
+      this.models = models;
       this.latitude = latitude;
       this.longitude = longitude;
       this.vs30 = vs30;
+      this.imts = commonImts(models);
+    }
+
+    /* The IMTs supported by all models. */
+    private static Set<Imt> commonImts(List<Model> models) {
+      Set<Imt> imts = EnumSet.copyOf(models.get(0).imts);
+      for (Model model : models) {
+        imts.retainAll(model.imts);
+      }
+      checkArgument(!imts.isEmpty(), "Models %s have no IMTs in common", models);
+      return Sets.immutableEnumSet(imts);
+    }
+
+    /* See HazardService.RequestData. */
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof RequestData)) {
+        return false;
+      }
+      RequestData that = (RequestData) obj;
+      return models.equals(that.models) &&
+          Double.compare(latitude, that.latitude) == 0 &&
+          Double.compare(longitude, that.longitude) == 0 &&
+          vs30 == that.vs30;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(models, latitude, longitude, vs30);
     }
   }
 
   private static final class ResponseData {
 
+    /* The first, or only, model; see RequestData. */
     final SourceModel model;
+    final List<Model> models;
     final double latitude;
     final double longitude;
     final Imt imt;
     final Vs30 vs30;
     final String xlabel = "Ground Motion (g)";
     final String ylabel = "Annual Frequency of Exceedence";
+    @JsonAdapter(ServletUtil.DoubleListAdapter.class)
     final List<Double> xvalues;
 
     ResponseData(RequestData request, Imt imt, List<Double> xvalues) {
-      this.model = new SourceModel(request.model);
+      this.model = new SourceModel(request.models.get(0));
+      this.models = request.models;
       this.latitude = request.latitude;
       this.longitude = request.longitude;
       this.imt = imt;
@@ -257,6 +606,7 @@ public final class HazardService2 extends NshmpServlet {
     }
   }
 
+  @JsonAdapter(Curve.Adapter.class)
   private static final class Curve {
 
     final String component;
@@ -266,6 +616,39 @@ public final class HazardService2 extends NshmpServlet {
       this.component = component;
       this.yvalues = yvalues;
     }
+
+    static final class Adapter extends TypeAdapter<Curve> {
+
+      @Override
+      public void write(JsonWriter out, Curve curve) throws IOException {
+        out.beginObject();
+        out.name("component").value(curve.component);
+        out.name("yvalues");
+        ServletUtil.writeDoubles(out, curve.yvalues);
+        out.endObject();
+      }
+
+      @Override
+      public Curve read(JsonReader in) throws IOException {
+        String component = null;
+        List<Double> yvalues = null;
+        in.beginObject();
+        while (in.hasNext()) {
+          switch (in.nextName()) {
+            case "component":
+              component = ServletUtil.readString(in);
+              break;
+            case "yvalues":
+              yvalues = ServletUtil.readDoubles(in);
+              break;
+            default:
+              in.skipValue();
+          }
+        }
+        in.endObject();
+        return new Curve(component, yvalues);
+      }
+    }
   }
 
   private static final String TOTAL_KEY = "Total";
@@ -288,42 +671,13 @@ public final class HazardService2 extends NshmpServlet {
 
       String url;
       Timer timer;
-      RequestData request;
-
-      Map<Imt, Map<SourceType, XySequence>> componentMaps;
-      Map<Imt, XySequence> totalMap;
-      Map<Imt, List<Double>> xValuesLinearMap;
-
-      Builder hazard(Hazard hazardResult) {
-        checkState(totalMap == null, "Hazard has already been added to this builder");
-
-        componentMaps = new EnumMap<>(Imt.class);
-        totalMap = new EnumMap<>(Imt.class);
-        xValuesLinearMap = new EnumMap<>(Imt.class);
-
-        Map<Imt, Map<SourceType, XySequence>> typeTotalMaps = curvesBySource(hazardResult);
-
-        for (Imt imt : hazardResult.curves().keySet()) {
-
-          // total curve
-          hazardResult.curves().get(imt).addToMap(imt, totalMap);
-
-          // component curves
-          Map<SourceType, XySequence> typeTotalMap = typeTotalMaps.get(imt);
-          Map<SourceType, XySequence> componentMap = componentMaps.get(imt);
-          if (componentMap == null) {
-            componentMap = new EnumMap<>(SourceType.class);
-            componentMaps.put(imt, componentMap);
-          }
+      List<RequestData> requests = new ArrayList<>();
+      List<HazardCurves> curves = new ArrayList<>();
 
-          for (SourceType type : typeTotalMap.keySet()) {
-            typeTotalMap.get(type).addToMap(type, componentMap);
-          }
-
-          xValuesLinearMap.put(
-              imt,
-              hazardResult.config().hazard.modelCurve(imt).xValues());
-        }
+      /* Add the hazard of a request; one per vs30. */
+      Builder hazard(RequestData request, HazardCurves curves) {
+        this.requests.add(request);
+        this.curves.add(curves);
         return this;
       }
 
@@ -337,40 +691,44 @@ public final class HazardService2 extends NshmpServlet {
         return this;
       }
 
-      Builder requestData(RequestData request) {
-        this.request = request;
-        return this;
-      }
-
+      /* One response per vs30 and IMT. */
       Result build() {
+        checkState(!requests.isEmpty(), "No hazard has been added to this builder");
         ImmutableList.Builder<Response> responseListBuilder = ImmutableList.builder();
 
-        for (Imt imt : totalMap.keySet()) {
-
-          ResponseData responseData = new ResponseData(
-              request,
-              imt,
-              xValuesLinearMap.get(imt));
-
-          ImmutableList.Builder<Curve> curveListBuilder = ImmutableList.builder();
-
-          // total curve
-          Curve totalCurve = new Curve(
-              TOTAL_KEY,
-              totalMap.get(imt).yValues());
-          curveListBuilder.add(totalCurve);
-
-          // component curves
-          Map<SourceType, XySequence> typeMap = componentMaps.get(imt);
-          for (SourceType type : typeMap.keySet()) {
-            Curve curve = new Curve(
-                type.toString(),
-                typeMap.get(type).yValues());
-            curveListBuilder.add(curve);
+        for (int i = 0; i < requests.size(); i++) {
+          RequestData request = requests.get(i);
+          Map<Imt, XySequence> totalMap = curves.get(i).totals;
+          Map<Imt, Map<SourceType, XySequence>> componentMaps = curves.get(i).components;
+          Map<Imt, List<Double>> xValuesLinearMap = curves.get(i).xValues;
+
+          for (Imt imt : totalMap.keySet()) {
+
+            ResponseData responseData = new ResponseData(
+                request,
+                imt,
+                xValuesLinearMap.get(imt));
+
+            ImmutableList.Builder<Curve> curveListBuilder = ImmutableList.builder();
+
+            // total curve
+            Curve totalCurve = new Curve(
+                TOTAL_KEY,
+                totalMap.get(imt).yValues());
+            curveListBuilder.add(totalCurve);
+
+            // component curves
+            Map<SourceType, XySequence> typeMap = componentMaps.get(imt);
+            for (SourceType type : typeMap.keySet()) {
+              Curve curve = new Curve(
+                  type.toString(),
+                  typeMap.get(type).yValues());
+              curveListBuilder.add(curve);
+            }
+
+            Response response = new Response(responseData, curveListBuilder.build());
+            responseListBuilder.add(response);
           }
-
-          Response response = new Response(responseData, curveListBuilder.build());
-          responseListBuilder.add(response);
         }
 
         List<Response> responseList = responseListBuilder.build();
@@ -379,5 +737,33 @@ public final class HazardService2 extends NshmpServlet {
         return new Result(url, server, responseList);
       }
     }
+
+    /* CSV response; see HazardService. Rows are keyed by vs30 and IMT. */
+    static void writeCsv(Result result, ServletResponse response) throws IOException {
+      response.setContentType(ServletUtil.CSV_CONTENT_TYPE);
+      PrintWriter out = response.getWriter();
+      ServletUtil.writeCsvComment(out, "url", result.url);
+      ServletUtil.writeCsvComment(out, "date", result.date);
+      if (!result.response.isEmpty()) {
+        ResponseData metadata = result.response.get(0).metadata;
+        ServletUtil.writeCsvComment(
+            out,
+            "model",
+            metadata.models.stream().map(model -> model.name).collect(joining(" + ")));
+        ServletUtil.writeCsvComment(out, "latitude", metadata.latitude);
+        ServletUtil.writeCsvComment(out, "longitude", metadata.longitude);
+        ServletUtil.writeCsvComment(out, "xvalues", metadata.xlabel);
+        ServletUtil.writeCsvComment(out, "yvalues", metadata.ylabel);
+      }
+      ServletUtil.writeCsvRow(out, "vs30", "imt", "component", "values");
+      for (Response imtResponse : result.response) {
+        double vs30 = imtResponse.metadata.vs30.value();
+        String imt = imtResponse.metadata.imt.name();
+        ServletUtil.writeCsvRow(out, vs30, imt, "xvalues", imtResponse.metadata.xvalues);
+        for (Curve curve : imtResponse.data) {
+          ServletUtil.writeCsvRow(out, vs30, imt, curve.component, curve.yvalues);
+        }
+      }
+    }
   }
 }
@@ -0,0 +1,649 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.IntFunction;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.JsonObject;
+
+import gov.usgs.earthquake.nshmp.www.NshmpServlet.UrlHelper;
+import gov.usgs.earthquake.nshmp.www.ServletUtil.TimedTask;
+import gov.usgs.earthquake.nshmp.www.TaskScheduler.Lane;
+import gov.usgs.earthquake.nshmp.www.Util.Format;
+
+/**
+ * Queue of asynchronous jobs. A job is a {@link TaskStream} whose results are
+ * written to a file in a local directory rather than to a response, and so
+ * may run for longer than a client, or an intervening proxy, is willing to
+ * wait, and may be retrieved once complete, in part while running, or again
+ * after a client reconnects; see {@link JobService}.
+ *
+ * <p>A batch, map, or deaggregation request is submitted as a job if it
+ * includes the header {@code Prefer: respond-async}; a deaggregation is a job
+ * of one task. The response to such a request is
+ * {@code 202 Accepted} with the job status. A request that also includes an
+ * {@code Idempotency-Key} header returns the existing job with that key, if
+ * any, rather than submitting another.
+ *
+ * <p>A bounded number of jobs run at one time, the rest waiting in FIFO order.
+ * Running jobs submit their tasks to the {@link ServletUtil#TASK_SCHEDULER} and
+ * so share calculation resources fairly with other requests. Jobs, their
+ * results, and the status of finished jobs, which is also written to the job
+ * directory, are retained for a limited time.
+ */
+final class JobQueue {
+
+  /*
+   * Developer notes:
+   *
+   * Jobs are started and finished while holding the queue lock. A stream
+   * calls back into the queue once finished while holding its own lock, so the
+   * queue lock must not be held when cancelling a stream.
+   */
+
+  private static final String PREFER_HEADER = "Prefer";
+  private static final String RESPOND_ASYNC = "respond-async";
+  private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+  private static final String RESULT_EXTENSION = ".result";
+  private static final String STATUS_EXTENSION = ".json";
+
+  /* Minimum interval, in milliseconds, between scans for expired jobs. */
+  private static final long EXPIRY_INTERVAL = 60 * 1000;
+
+  private final Path dir;
+  private final int maxJobs;
+  private final int maxQueuedJobs;
+  private final long retention;
+
+  private final Map<String, Job> jobs = new HashMap<>();
+  private final Map<String, Job> keys = new HashMap<>();
+  private final Deque<Job> queue = new ArrayDeque<>();
+  private int running;
+  private long expired;
+  private boolean shutdown;
+
+  /**
+   * Create a job queue.
+   *
+   * @param dir directory of job results
+   * @param maxJobs the number of jobs that may run at one time
+   * @param maxQueuedJobs the number of jobs that may wait to run
+   * @param retention the time, in milliseconds, for which finished jobs and
+   *        their results are retained
+   */
+  JobQueue(Path dir, int maxJobs, int maxQueuedJobs, long retention) {
+    this.dir = dir;
+    this.maxJobs = maxJobs;
+    this.maxQueuedJobs = maxQueuedJobs;
+    this.retention = retention;
+  }
+
+  /* Whether a request asks to be processed asynchronously. */
+  static boolean isJobRequest(HttpServletRequest request) {
+    String prefer = request.getHeader(PREFER_HEADER);
+    return prefer != null && prefer.toLowerCase().contains(RESPOND_ASYNC);
+  }
+
+  /**
+   * Submit a single task, e.g. a deaggregation, as a job and respond with its
+   * status. The result is written as JSON or, if the task fails, as a JSON
+   * error message. Job results are text, so only JSON output is supported.
+   *
+   * @param request to respond to
+   * @param response to write to
+   * @param urlHelper of the request
+   * @param lane to submit the task to
+   * @param task to run
+   * @throws IllegalArgumentException if another output format is requested
+   * @throws IllegalStateException if the queue is full
+   */
+  <T> void submit(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      UrlHelper urlHelper,
+      Lane lane,
+      TimedTask<T> task) throws IOException {
+
+    checkArgument(
+        Util.readFormat(request) == Format.JSON,
+        "Asynchronous requests support JSON output only");
+    response.setContentType("application/json; charset=UTF-8");
+    submit(
+        request,
+        response,
+        urlHelper,
+        lane,
+        1,
+        index -> task,
+        new JsonResultWriter<>(urlHelper.url));
+  }
+
+  /**
+   * Submit a job and respond with its status. The content type of the
+   * response should be set to that of the job results before calling this
+   * method.
+   *
+   * @param request to respond to
+   * @param response to write to
+   * @param urlHelper of the request
+   * @param lane to submit tasks to
+   * @param size the number of tasks
+   * @param tasks that creates the task with the supplied index
+   * @param writer of results
+   * @throws IllegalStateException if the queue is full
+   */
+  <T> void submit(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      UrlHelper urlHelper,
+      Lane lane,
+      int size,
+      IntFunction<? extends TimedTask<T>> tasks,
+      TaskStream.Writer<T> writer) throws IOException {
+
+    String id = UUID.randomUUID().toString();
+    String statusUrl = urlHelper.format(request.getContextPath() + "/jobs/" + id);
+    String key = request.getHeader(IDEMPOTENCY_KEY_HEADER);
+    ServletContext context = request.getServletContext();
+
+    Status status;
+    synchronized (this) {
+      expire();
+      Job job = (key == null) ? null : keys.get(key);
+      if (job == null) {
+        checkState(!shutdown, "Job queue has been shut down");
+        checkState(
+            queue.size() < maxQueuedJobs,
+            "Job queue is full; try again later");
+        Files.createDirectories(dir);
+        job = new Job(
+            id,
+            key,
+            urlHelper.url,
+            statusUrl,
+            response.getContentType(),
+            size,
+            started -> {
+              Writer fileWriter = new OutputStreamWriter(
+                  Files.newOutputStream(resultFile(id)),
+                  UTF_8);
+              started.out = new PrintWriter(new BufferedWriter(fileWriter));
+              return TaskStream.start(
+                  started.out,
+                  context,
+                  started.url,
+                  lane,
+                  size,
+                  tasks,
+                  new CountingWriter<>(started, writer),
+                  () -> finished(started));
+            },
+            context);
+        jobs.put(id, job);
+        if (key != null) {
+          keys.put(key, job);
+        }
+        queue.add(job);
+        dispatch();
+      }
+      status = status(job);
+    }
+
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    response.setContentType("application/json; charset=UTF-8");
+    response.setHeader("Location", status.url);
+    response.getWriter().print(ServletUtil.GSON.toJson(status));
+  }
+
+  /**
+   * Return the status of a job, if it exists, whether it is held in memory
+   * or, once finished, was written to the job directory, for instance before
+   * a restart.
+   *
+   * @param id of job
+   */
+  Optional<Status> status(String id) throws IOException {
+    synchronized (this) {
+      expire();
+      Job job = jobs.get(id);
+      if (job != null) {
+        return Optional.of(status(job));
+      }
+    }
+    if (!isJobId(id)) {
+      return Optional.empty();
+    }
+    Path statusFile = dir.resolve(id + STATUS_EXTENSION);
+    if (!Files.exists(statusFile)) {
+      return Optional.empty();
+    }
+    try (Reader reader = Files.newBufferedReader(statusFile, UTF_8)) {
+      return Optional.of(ServletUtil.GSON.fromJson(reader, Status.class));
+    }
+  }
+
+  /**
+   * Cancel a job that is waiting or running.
+   *
+   * @param id of job
+   * @return the status of the job, if it exists
+   */
+  Optional<Status> cancel(String id) throws IOException {
+    TaskStream<?> stream;
+    synchronized (this) {
+      Job job = jobs.get(id);
+      if (job == null) {
+        return status(id);
+      }
+      if (job.state == State.QUEUED) {
+        queue.remove(job);
+        finish(job, State.CANCELLED);
+        return Optional.of(status(job));
+      }
+      stream = job.stream;
+    }
+    /* Stops further writes; see developer notes. */
+    if (stream != null) {
+      stream.cancel();
+    }
+    synchronized (this) {
+      Job job = jobs.get(id);
+      if (job == null) {
+        return status(id);
+      }
+      finish(job, State.CANCELLED);
+      return Optional.of(status(job));
+    }
+  }
+
+  /**
+   * Shut down the queue. Running jobs are cancelled and, with waiting jobs,
+   * recorded as failed; no further jobs are accepted.
+   */
+  void shutdown() {
+    List<TaskStream<?>> streams = new ArrayList<>();
+    synchronized (this) {
+      shutdown = true;
+      queue.clear();
+      for (Job job : jobs.values()) {
+        if (job.stream != null) {
+          streams.add(job.stream);
+        }
+      }
+    }
+    /* Stops further writes; see developer notes. */
+    streams.forEach(TaskStream::cancel);
+    synchronized (this) {
+      for (Job job : jobs.values()) {
+        if (!job.state.isFinished()) {
+          job.message = "Service stopped before the job completed";
+          finish(job, State.FAILED);
+        }
+      }
+    }
+  }
+
+  /* The result file of a job. */
+  Path resultFile(String id) {
+    return dir.resolve(id + RESULT_EXTENSION);
+  }
+
+  /* Guard against paths outside the job directory. */
+  static boolean isJobId(String id) {
+    try {
+      return UUID.fromString(id).toString().equals(id);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /* Start waiting jobs; caller must hold lock. */
+  private void dispatch() {
+    while (!shutdown && running < maxJobs && !queue.isEmpty()) {
+      Job job = queue.remove();
+      job.state = State.RUNNING;
+      job.started = System.currentTimeMillis();
+      running++;
+      try {
+        TaskStream<?> stream = job.starter.start(job);
+        /* A stream with no tasks may finish before it is returned. */
+        if (!job.state.isFinished()) {
+          job.stream = stream;
+        }
+      } catch (IOException | RuntimeException e) {
+        job.context.log(job.url, e);
+        job.message = String.valueOf(e.getMessage());
+        finish(job, State.FAILED);
+      }
+    }
+  }
+
+  /* Stream callback; a stream is cancelled if writing failed. */
+  private synchronized void finished(Job job) {
+    boolean failed = job.stream != null && job.stream.isCancelled();
+    if (failed) {
+      job.message = "Error writing results";
+    }
+    finish(job, failed ? State.FAILED : State.COMPLETE);
+  }
+
+  /* Record the end of a job; caller must hold lock. */
+  private void finish(Job job, State state) {
+    if (job.state.isFinished()) {
+      return;
+    }
+    boolean wasRunning = job.state == State.RUNNING;
+    job.state = state;
+    job.finished = System.currentTimeMillis();
+    if (job.out != null) {
+      job.out.close();
+    }
+    /* Release request data retained by the stream and its starter. */
+    job.out = null;
+    job.stream = null;
+    job.starter = null;
+    try {
+      Files.write(
+          dir.resolve(job.id + STATUS_EXTENSION),
+          ServletUtil.GSON.toJson(status(job)).getBytes(UTF_8));
+    } catch (IOException e) {
+      job.context.log(job.url, e);
+    }
+    if (wasRunning) {
+      running--;
+      dispatch();
+    }
+  }
+
+  /*
+   * Remove jobs and files older than the retention period, at most once per
+   * expiry interval; caller must hold lock.
+   */
+  private void expire() throws IOException {
+    long now = System.currentTimeMillis();
+    if (now - expired < EXPIRY_INTERVAL) {
+      return;
+    }
+    expired = now;
+    long cutoff = now - retention;
+    Iterator<Job> iterator = jobs.values().iterator();
+    while (iterator.hasNext()) {
+      Job job = iterator.next();
+      if (job.state.isFinished() && job.finished < cutoff) {
+        iterator.remove();
+        if (job.key != null) {
+          keys.remove(job.key);
+        }
+      }
+    }
+    if (!Files.isDirectory(dir)) {
+      return;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        String id = name.substring(0, Math.max(0, name.lastIndexOf('.')));
+        if (!jobs.containsKey(id) && Files.getLastModifiedTime(file).toMillis() < cutoff) {
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+  }
+
+  /* Job snapshot; caller must hold lock. */
+  private Status status(Job job) {
+    int position = 0;
+    if (job.state == State.QUEUED) {
+      for (Job queued : queue) {
+        position++;
+        if (queued == job) {
+          break;
+        }
+      }
+    }
+    int completed = job.completed;
+    Long eta = null;
+    if (job.state == State.RUNNING && completed > 0) {
+      long elapsed = System.currentTimeMillis() - job.started;
+      eta = Math.round(elapsed / 1000.0 * (job.size - completed) / completed);
+    }
+    long size = 0;
+    try {
+      Path file = resultFile(job.id);
+      size = Files.exists(file) ? Files.size(file) : 0;
+    } catch (IOException e) {
+      /* report zero */
+    }
+    return new Status(
+        job.id,
+        job.state.toString(),
+        job.message,
+        job.statusUrl,
+        job.url,
+        date(job.created),
+        date(job.started),
+        date(job.finished),
+        (position == 0) ? null : position,
+        completed,
+        job.size,
+        eta,
+        job.statusUrl + "/result",
+        job.contentType,
+        size);
+  }
+
+  private static String date(long millis) {
+    return (millis == 0) ? null : ZonedDateTime
+        .ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault())
+        .format(ServletUtil.DATE_FMT);
+  }
+
+  enum State {
+    QUEUED,
+    RUNNING,
+    COMPLETE,
+    FAILED,
+    CANCELLED;
+
+    boolean isFinished() {
+      return this != QUEUED && this != RUNNING;
+    }
+
+    @Override
+    public String toString() {
+      return name().toLowerCase();
+    }
+  }
+
+  /* Starts the stream of a job. */
+  @FunctionalInterface
+  private interface Starter {
+    TaskStream<?> start(Job job) throws IOException;
+  }
+
+  private static final class Job {
+
+    final String id;
+    final String key;
+    final String url;
+    final String statusUrl;
+    final String contentType;
+    final int size;
+    final ServletContext context;
+    final long created = System.currentTimeMillis();
+
+    /* Guarded by the queue lock; starter and stream are cleared once finished. */
+    Starter starter;
+    State state = State.QUEUED;
+    long started;
+    long finished;
+    String message;
+    PrintWriter out;
+    TaskStream<?> stream;
+
+    /* Written by the job stream only. */
+    volatile int completed;
+
+    Job(
+        String id,
+        String key,
+        String url,
+        String statusUrl,
+        String contentType,
+        int size,
+        Starter starter,
+        ServletContext context) {
+
+      this.id = id;
+      this.key = key;
+      this.url = url;
+      this.statusUrl = statusUrl;
+      this.contentType = contentType;
+      this.size = size;
+      this.starter = starter;
+      this.context = context;
+    }
+  }
+
+  /* Writes the result of a single task job; see submit(). */
+  private static final class JsonResultWriter<T> implements TaskStream.Writer<T> {
+
+    final String url;
+
+    JsonResultWriter(String url) {
+      this.url = url;
+    }
+
+    @Override
+    public void result(PrintWriter out, int index, T result) {
+      ServletUtil.GSON.toJson(result, out);
+    }
+
+    @Override
+    public void error(PrintWriter out, int index, String message) {
+      JsonObject error = new JsonObject();
+      error.addProperty(
+          "status",
+          gov.usgs.earthquake.nshmp.www.meta.Status.ERROR.toString());
+      error.addProperty("request", url);
+      error.addProperty("message", message);
+      ServletUtil.GSON.toJson(error, out);
+    }
+  }
+
+  /* Counts the results, including errors, written by a job stream. */
+  private static final class CountingWriter<T> implements TaskStream.Writer<T> {
+
+    final Job job;
+    final TaskStream.Writer<T> writer;
+
+    CountingWriter(Job job, TaskStream.Writer<T> writer) {
+      this.job = job;
+      this.writer = writer;
+    }
+
+    @Override
+    public void start(PrintWriter out) throws IOException {
+      writer.start(out);
+    }
+
+    @Override
+    public void result(PrintWriter out, int index, T result) throws IOException {
+      writer.result(out, index, result);
+      job.completed++;
+    }
+
+    @Override
+    public void error(PrintWriter out, int index, String message) throws IOException {
+      writer.error(out, index, message);
+      job.completed++;
+    }
+  }
+
+  /* Job status, as returned to clients and written to the job directory. */
+  static final class Status {
+
+    final String id;
+    final String status;
+    final String message;
+    final String url;
+    final String request;
+    final String created;
+    final String started;
+    final String finished;
+    final Integer position;
+    final int completed;
+    final int total;
+    final Long eta;
+    final String result;
+    final String contentType;
+    final long size;
+
+    Status(
+        String id,
+        String status,
+        String message,
+        String url,
+        String request,
+        String created,
+        String started,
+        String finished,
+        Integer position,
+        int completed,
+        int total,
+        Long eta,
+        String result,
+        String contentType,
+        long size) {
+
+      this.id = id;
+      this.status = status;
+      this.message = message;
+      this.url = url;
+      this.request = request;
+      this.created = created;
+      this.started = started;
+      this.finished = finished;
+      this.position = position;
+      this.completed = completed;
+      this.total = total;
+      this.eta = eta;
+      this.result = result;
+      this.contentType = contentType;
+      this.size = size;
+    }
+
+    boolean isFinished() {
+      return !status.equals(State.QUEUED.toString()) &&
+          !status.equals(State.RUNNING.toString());
+    }
+  }
+}
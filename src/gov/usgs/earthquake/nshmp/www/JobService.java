@@ -0,0 +1,229 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.base.Splitter;
+
+import gov.usgs.earthquake.nshmp.www.JobQueue.Status;
+import gov.usgs.earthquake.nshmp.www.meta.Metadata;
+
+/**
+ * Asynchronous job status and result service; see {@link JobQueue}.
+ *
+ * <ul><li>{@code GET /jobs/{id}}: job status, including its position in the
+ * queue, progress, and estimated time remaining</li>
+ *
+ * <li>{@code GET /jobs/{id}/result}: job results, as written so far; single
+ * byte range requests are supported so that clients may resume a download or
+ * fetch only results written since a prior request</li>
+ *
+ * <li>{@code DELETE /jobs/{id}}: cancel a job</li></ul>
+ */
+@WebServlet(
+    name = "Job Service",
+    description = "USGS NSHMP Asynchronous Job Service",
+    urlPatterns = {
+        "/jobs",
+        "/jobs/*" })
+public final class JobService extends NshmpServlet {
+
+  private static final String RESULT = "result";
+  private static final int BUFFER_SIZE = 8192;
+
+  @Override
+  protected void doGet(
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws ServletException, IOException {
+
+    UrlHelper urlHelper = urlHelper(request, response);
+
+    try {
+      List<String> path = path(request);
+      Optional<Status> status = ServletUtil.JOB_QUEUE.status(path.get(0));
+      if (!status.isPresent()) {
+        notFound(response, urlHelper);
+        return;
+      }
+      if (path.size() == 1) {
+        response.getWriter().print(ServletUtil.GSON.toJson(status.get()));
+        return;
+      }
+      if (path.size() == 2 && path.get(1).equals(RESULT)) {
+        writeResult(request, response, status.get());
+        return;
+      }
+      notFound(response, urlHelper);
+
+    } catch (Exception e) {
+      String message = Metadata.errorMessage(urlHelper.url, e, false);
+      response.getWriter().print(message);
+      getServletContext().log(urlHelper.url, e);
+    }
+  }
+
+  @Override
+  protected void doDelete(
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws ServletException, IOException {
+
+    UrlHelper urlHelper = urlHelper(request, response);
+
+    try {
+      List<String> path = path(request);
+      Optional<Status> status = (path.size() == 1)
+          ? ServletUtil.JOB_QUEUE.cancel(path.get(0))
+          : Optional.empty();
+      if (!status.isPresent()) {
+        notFound(response, urlHelper);
+        return;
+      }
+      response.getWriter().print(ServletUtil.GSON.toJson(status.get()));
+
+    } catch (Exception e) {
+      String message = Metadata.errorMessage(urlHelper.url, e, false);
+      response.getWriter().print(message);
+      getServletContext().log(urlHelper.url, e);
+    }
+  }
+
+  /* Path components following '/jobs'. */
+  private static List<String> path(HttpServletRequest request) {
+    String pathInfo = request.getPathInfo();
+    List<String> path = Splitter.on('/')
+        .omitEmptyStrings()
+        .splitToList((pathInfo == null) ? "" : pathInfo);
+    if (path.isEmpty()) {
+      throw new IllegalArgumentException("Missing job id");
+    }
+    return path;
+  }
+
+  private static void notFound(
+      HttpServletResponse response,
+      UrlHelper urlHelper) throws IOException {
+
+    response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+    response.getWriter().print(Metadata.errorMessage(
+        urlHelper.url,
+        new IllegalArgumentException("Job not found"),
+        false));
+  }
+
+  /*
+   * The total length of the results of a job that has not finished is not yet
+   * known and is reported as '*' in a Content-Range header.
+   */
+  private static void writeResult(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      Status status) throws IOException {
+
+    Path file = ServletUtil.JOB_QUEUE.resultFile(status.id);
+    long length = Files.exists(file) ? Files.size(file) : 0;
+    response.setContentType(status.contentType);
+    response.setHeader("Accept-Ranges", "bytes");
+
+    long[] range = range(request.getHeader("Range"), length);
+    if (range == null) {
+      response.setContentLengthLong(length);
+      copy(file, 0, length, response.getOutputStream());
+      return;
+    }
+    String total = status.isFinished() ? String.valueOf(length) : "*";
+    if (range.length == 0) {
+      response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      response.setHeader("Content-Range", "bytes */" + total);
+      return;
+    }
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    response.setHeader(
+        "Content-Range",
+        String.format("bytes %s-%s/%s", range[0], range[1], total));
+    response.setContentLengthLong(range[1] - range[0] + 1);
+    copy(file, range[0], range[1] + 1, response.getOutputStream());
+  }
+
+  /*
+   * Parse a single byte range: 'bytes=first-last', 'bytes=first-', or
+   * 'bytes=-suffixLength'. Returns null if the header is absent, malformed, or
+   * specifies multiple ranges, in which case it is ignored, and an empty array
+   * if the range is not satisfiable.
+   */
+  private static long[] range(String header, long length) {
+    if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = header.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      long start;
+      long end;
+      if (first.isEmpty()) {
+        long suffix = Long.parseLong(last);
+        if (suffix <= 0) {
+          return new long[0];
+        }
+        start = Math.max(0, length - suffix);
+        end = length - 1;
+      } else {
+        start = Long.parseLong(first);
+        end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+        if (end < start) {
+          return null;
+        }
+        end = Math.min(end, length - 1);
+      }
+      return (start >= length) ? new long[0] : new long[] { start, end };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static void copy(Path file, long start, long end, OutputStream out)
+      throws IOException {
+
+    if (start >= end) {
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      WritableByteChannel target = Channels.newChannel(out);
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      long position = start;
+      while (position < end) {
+        buffer.clear();
+        buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+          break;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          target.write(buffer);
+        }
+        position += read;
+      }
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import java.util.Set;
+
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Sets;
+
+import gov.usgs.earthquake.nshmp.eq.model.HazardModel;
+import gov.usgs.earthquake.nshmp.eq.model.Source;
+import gov.usgs.earthquake.nshmp.eq.model.SourceSet;
+
+/**
+ * Model cache weigher. The weight of a {@code HazardModel} is a rough estimate
+ * of its retained heap, in kilobytes, derived from the number of sources and
+ * ruptures of each source set. Fault-like sources hold fully realized
+ * ruptures and surfaces; gridded sources create ruptures on the fly and hold
+ * little more than their magnitude-frequency distributions.
+ *
+ * <p>Pinned models weigh nothing and are therefore never evicted to make room
+ * for others; their estimated size is instead deducted from the cache budget.
+ */
+final class ModelWeigher implements Weigher<Model, HazardModel> {
+
+  /* Estimated bytes per source and per rupture. */
+  private static final int FAULT_SOURCE_BYTES = 2048;
+  private static final int FAULT_RUPTURE_BYTES = 512;
+  private static final int SYSTEM_RUPTURE_BYTES = 256;
+  private static final int GRID_SOURCE_BYTES = 256;
+  private static final int GRID_RUPTURE_BYTES = 64;
+
+  private final Set<Model> pinned;
+
+  ModelWeigher(Set<Model> pinned) {
+    this.pinned = Sets.immutableEnumSet(pinned);
+  }
+
+  @Override
+  public int weigh(Model id, HazardModel model) {
+    return pinned.contains(id) ? 0 : estimate(model);
+  }
+
+  /* The estimated size of a model, in kilobytes. */
+  static int estimate(HazardModel model) {
+    long bytes = 0;
+    for (SourceSet<? extends Source> sourceSet : model) {
+      int sourceBytes;
+      int ruptureBytes;
+      switch (sourceSet.type()) {
+        case AREA:
+        case GRID:
+        case SLAB:
+          sourceBytes = GRID_SOURCE_BYTES;
+          ruptureBytes = GRID_RUPTURE_BYTES;
+          break;
+        case SYSTEM:
+          sourceBytes = FAULT_SOURCE_BYTES;
+          ruptureBytes = SYSTEM_RUPTURE_BYTES;
+          break;
+        default:
+          sourceBytes = FAULT_SOURCE_BYTES;
+          ruptureBytes = FAULT_RUPTURE_BYTES;
+      }
+      for (Source source : sourceSet) {
+        bytes += sourceBytes + (long) source.size() * ruptureBytes;
+      }
+    }
+    return (int) Math.min(bytes / 1024, Integer.MAX_VALUE);
+  }
+}
@@ -47,6 +47,9 @@ public abstract class NshmpServlet extends HttpServlet {
     response.setHeader("Access-Control-Allow-Methods", "*");
     response.setHeader("Access-Control-Allow-Headers", "accept,origin,authorization,content-type");
 
+    /* Responses may be CBOR-encoded on request; see Util.readFormat(). */
+    response.addHeader("Vary", "Accept");
+
     super.service(request, response);
   }
 
@@ -93,6 +96,15 @@ public abstract class NshmpServlet extends HttpServlet {
       this.url = url;
     }
 
+    /**
+     * Return a URL, with the correct protocol and host, for the supplied path.
+     * 
+     * @param path, starting with '/'
+     */
+    String format(String path) {
+      return String.format("%s://%s%s", protocol, host, path);
+    }
+
     /**
      * Convenience method to update a string response with the correct protocol
      * and host in URLs. URL strings should start with:
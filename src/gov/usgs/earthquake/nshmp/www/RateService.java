@@ -3,7 +3,6 @@ package gov.usgs.earthquake.nshmp.www;
 import static com.google.common.base.Preconditions.checkState;
 import static gov.usgs.earthquake.nshmp.calc.ValueFormat.ANNUAL_RATE;
 import static gov.usgs.earthquake.nshmp.calc.ValueFormat.POISSON_PROBABILITY;
-import static gov.usgs.earthquake.nshmp.www.ServletUtil.GSON;
 import static gov.usgs.earthquake.nshmp.www.ServletUtil.MODEL_CACHE_CONTEXT_ID;
 import static gov.usgs.earthquake.nshmp.www.ServletUtil.emptyRequest;
 import static gov.usgs.earthquake.nshmp.www.Util.readDouble;
@@ -18,22 +17,33 @@ import static gov.usgs.earthquake.nshmp.www.meta.Region.CEUS;
 import static gov.usgs.earthquake.nshmp.www.meta.Region.WUS;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import gov.usgs.earthquake.nshmp.calc.CalcConfig;
 import gov.usgs.earthquake.nshmp.calc.CalcConfig.Builder;
@@ -46,7 +56,10 @@ import gov.usgs.earthquake.nshmp.eq.model.SourceType;
 import gov.usgs.earthquake.nshmp.geo.Location;
 import gov.usgs.earthquake.nshmp.internal.Parsing;
 import gov.usgs.earthquake.nshmp.internal.Parsing.Delimiter;
+import gov.usgs.earthquake.nshmp.www.ServletUtil.ResultWriter;
+import gov.usgs.earthquake.nshmp.www.ServletUtil.TimedTask;
 import gov.usgs.earthquake.nshmp.www.ServletUtil.Timer;
+import gov.usgs.earthquake.nshmp.www.TaskScheduler.Lane;
 import gov.usgs.earthquake.nshmp.www.meta.Edition;
 import gov.usgs.earthquake.nshmp.www.meta.Metadata;
 import gov.usgs.earthquake.nshmp.www.meta.Region;
@@ -61,6 +74,7 @@ import gov.usgs.earthquake.nshmp.www.meta.Status;
 @WebServlet(
     name = "Earthquake Probability & Rate Service",
     description = "USGS NSHMP Earthquake Probability & Rate Calculator",
+    asyncSupported = true,
     urlPatterns = {
         "/rate",
         "/rate/*",
@@ -71,10 +85,10 @@ public final class RateService extends NshmpServlet {
   /*
    * Developer notes:
    *
-   * The RateService is currently single-threaded and does not submit jobs to a
-   * request queue; see HazardService. However, jobs are placed on a thread in
-   * the CALC_EXECUTOR thread pool to handle parallel calculation of CEUS and
-   * WUS models.
+   * Rate requests are submitted as tasks to the ServletUtil.TASK_SCHEDULER so
+   * that they are processed asynchronously and do not hold a request thread;
+   * see HazardService. CEUS and WUS models are computed in parallel on the
+   * task's share of the CALC_EXECUTOR and combined as soon as both complete.
    */
 
   @Override
@@ -83,10 +97,7 @@ public final class RateService extends NshmpServlet {
       HttpServletResponse response)
       throws ServletException, IOException {
 
-    Timer timer = ServletUtil.timer();
-
     UrlHelper urlHelper = urlHelper(request, response);
-    String query = request.getQueryString();
     String pathInfo = request.getPathInfo();
     String service = request.getServletPath();
 
@@ -101,7 +112,10 @@ public final class RateService extends NshmpServlet {
 
     RequestData requestData;
     try {
-      if (query != null) {
+      ResultWriter<Result> writer = ServletUtil.resultWriter(
+          Util.readFormat(request),
+          Result::writeCsv);
+      if (Util.isQueryRequest(request)) {
         /* process query '?' request */
         requestData = buildRequest(request, format);
       } else {
@@ -114,15 +128,16 @@ public final class RateService extends NshmpServlet {
         requestData = buildRequest(params, format);
       }
 
-      EqRate rates = calc(requestData, getServletContext());
-      Result result = new Result.Builder()
-          .requestData(requestData)
-          .url(urlHelper.url)
-          .timer(timer)
-          .rates(rates)
-          .build();
-      String resultStr = GSON.toJson(result);
-      response.getWriter().print(resultStr);
+      RateTask task = new RateTask(urlHelper.url, getServletContext(), requestData);
+      ListenableFuture<Result> result = ServletUtil.TASK_SCHEDULER.submit(
+          Lane.RATE,
+          requestData,
+          task);
+      ServletUtil.writeResult(
+          request.startAsync(request, response),
+          result,
+          urlHelper.url,
+          writer);
 
     } catch (Exception e) {
       String message = Metadata.errorMessage(urlHelper.url, e, false);
@@ -161,29 +176,24 @@ public final class RateService extends NshmpServlet {
         timespan);
   }
 
-  /*
-   * TODO delete if not needed
-   *
-   * Currently unused, however, will be used if it makes sense to submit jobs to
-   * TASK_EXECUTOR.
-   */
-  private static class RateTask implements Callable<Result> {
+  private static class RateTask extends TimedTask<Result> {
 
-    final String url;
     final RequestData data;
-    final ServletContext context;
-    final Timer timer;
 
-    RateTask(String url, RequestData data, ServletContext context) {
-      this.url = url;
+    RateTask(String url, ServletContext context, RequestData data) {
+      super(url, context);
       this.data = data;
-      this.context = context;
-      this.timer = ServletUtil.timer();
     }
 
     @Override
-    public Result call() throws Exception {
-      EqRate rates = calc(data, context);
+    Result attach(Result result) {
+      Object server = Metadata.serverData(ServletUtil.THREAD_COUNT, timer);
+      return new Result(url, server, result.response);
+    }
+
+    @Override
+    Result calc() throws Exception {
+      EqRate rates = RateService.calc(data, context, executor);
       return new Result.Builder()
           .requestData(data)
           .url(url)
@@ -193,7 +203,7 @@ public final class RateService extends NshmpServlet {
     }
   }
 
-  private static EqRate calc(RequestData data, ServletContext context)
+  private static EqRate calc(RequestData data, ServletContext context, Executor executor)
       throws InterruptedException, ExecutionException {
 
     Location location = Location.create(data.latitude, data.longitude);
@@ -221,14 +231,32 @@ public final class RateService extends NshmpServlet {
 
       Model wusId = Model.valueOf(WUS.name() + "_" + baseYear);
       HazardModel wusModel = modelCache.get(wusId);
-      ListenableFuture<EqRate> wusRates = process(wusModel, site, distance, emptyTimespan);
 
       String ceusYear = baseYear.equals("2014B") ? "2014" : baseYear;
       Model ceusId = Model.valueOf(CEUS.name() + "_" + ceusYear);
       HazardModel ceusModel = modelCache.get(ceusId);
-      ListenableFuture<EqRate> ceusRates = process(ceusModel, site, distance, emptyTimespan);
 
-      rates = EqRate.combine(wusRates.get(), ceusRates.get());
+      ListenableFuture<EqRate> wusRates =
+          process(wusModel, site, distance, emptyTimespan, executor);
+      ListenableFuture<EqRate> ceusRates =
+          process(ceusModel, site, distance, emptyTimespan, executor);
+
+      /*
+       * Combine as soon as both complete, or fail as soon as either fails; both
+       * are cancelled if either fails or the calling thread is interrupted, as
+       * in ServletUtil.calcAll().
+       */
+      try {
+        rates = Futures.whenAllSucceed(wusRates, ceusRates)
+            .call(
+                () -> EqRate.combine(Futures.getDone(wusRates), Futures.getDone(ceusRates)),
+                MoreExecutors.directExecutor())
+            .get();
+      } catch (InterruptedException | ExecutionException e) {
+        wusRates.cancel(true);
+        ceusRates.cancel(true);
+        throw e;
+      }
 
     } else {
 
@@ -237,7 +265,7 @@ public final class RateService extends NshmpServlet {
       Model modelId = Model.valueOf(data.region.name() + "_" + year);
 
       HazardModel model = modelCache.get(modelId);
-      rates = process(model, site, distance, emptyTimespan).get();
+      rates = process(model, site, distance, emptyTimespan, executor).get();
     }
 
     if (data.timespan.isPresent()) {
@@ -251,7 +279,8 @@ public final class RateService extends NshmpServlet {
       HazardModel model,
       Site site,
       double distance,
-      Optional<Double> timespan) {
+      Optional<Double> timespan,
+      Executor executor) {
 
     Builder configBuilder = CalcConfig.Builder
         .copyOf(model.config())
@@ -261,8 +290,10 @@ public final class RateService extends NshmpServlet {
       configBuilder.timespan(timespan.get());
     }
     CalcConfig config = configBuilder.build();
-    Callable<EqRate> task = EqRate.callable(model, config, site);
-    return ServletUtil.CALC_EXECUTOR.submit(task);
+    Callable<EqRate> callable = EqRate.callable(model, config, site);
+    ListenableFutureTask<EqRate> task = ListenableFutureTask.create(callable);
+    executor.execute(task);
+    return task;
   }
 
   static final class RequestData {
@@ -289,6 +320,29 @@ public final class RateService extends NshmpServlet {
       this.distance = distance;
       this.timespan = timespan;
     }
+
+    /* See HazardService.RequestData. */
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof RequestData)) {
+        return false;
+      }
+      RequestData that = (RequestData) obj;
+      return edition == that.edition &&
+          region == that.region &&
+          Double.compare(latitude, that.latitude) == 0 &&
+          Double.compare(longitude, that.longitude) == 0 &&
+          Double.compare(distance, that.distance) == 0 &&
+          timespan.equals(that.timespan);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(edition, region, latitude, longitude, distance, timespan);
+    }
   }
 
   private static final class ResponseData {
@@ -330,6 +384,7 @@ public final class RateService extends NshmpServlet {
    * TODO would rather use this a general container for mfds and hazard curves.
    * See HazardService.Curve
    */
+  @JsonAdapter(Sequence.Adapter.class)
   private static class Sequence {
 
     final String component;
@@ -341,6 +396,45 @@ public final class RateService extends NshmpServlet {
       this.xvalues = xvalues;
       this.yvalues = yvalues;
     }
+
+    static final class Adapter extends TypeAdapter<Sequence> {
+
+      @Override
+      public void write(JsonWriter out, Sequence sequence) throws IOException {
+        out.beginObject();
+        out.name("component").value(sequence.component);
+        out.name("xvalues");
+        ServletUtil.writeDoubles(out, sequence.xvalues);
+        out.name("yvalues");
+        ServletUtil.writeDoubles(out, sequence.yvalues);
+        out.endObject();
+      }
+
+      @Override
+      public Sequence read(JsonReader in) throws IOException {
+        String component = null;
+        List<Double> xvalues = null;
+        List<Double> yvalues = null;
+        in.beginObject();
+        while (in.hasNext()) {
+          switch (in.nextName()) {
+            case "component":
+              component = ServletUtil.readString(in);
+              break;
+            case "xvalues":
+              xvalues = ServletUtil.readDoubles(in);
+              break;
+            case "yvalues":
+              yvalues = ServletUtil.readDoubles(in);
+              break;
+            default:
+              in.skipValue();
+          }
+        }
+        in.endObject();
+        return new Sequence(component, xvalues, yvalues);
+      }
+    }
   }
 
   private static final String TOTAL_KEY = "Total";
@@ -420,5 +514,36 @@ public final class RateService extends NshmpServlet {
         return new Result(url, server, response);
       }
     }
+
+    /*
+     * CSV response: request metadata as comments followed by one row per
+     * magnitude of each component distribution.
+     */
+    static void writeCsv(Result result, ServletResponse response) throws IOException {
+      response.setContentType(ServletUtil.CSV_CONTENT_TYPE);
+      PrintWriter out = response.getWriter();
+      ResponseData metadata = result.response.metadata;
+      ServletUtil.writeCsvComment(out, "url", result.url);
+      ServletUtil.writeCsvComment(out, "date", result.date);
+      ServletUtil.writeCsvComment(out, "edition", metadata.edition);
+      ServletUtil.writeCsvComment(out, "region", metadata.region);
+      ServletUtil.writeCsvComment(out, "latitude", metadata.latitude);
+      ServletUtil.writeCsvComment(out, "longitude", metadata.longitude);
+      ServletUtil.writeCsvComment(out, "distance", metadata.distance);
+      if (metadata.timespan != null) {
+        ServletUtil.writeCsvComment(out, "timespan", metadata.timespan);
+      }
+      String yHeader = (metadata.timespan != null) ? "probability" : "rate";
+      ServletUtil.writeCsvRow(out, "component", "magnitude", yHeader);
+      for (Sequence sequence : result.response.data) {
+        for (int i = 0; i < sequence.xvalues.size(); i++) {
+          ServletUtil.writeCsvRow(
+              out,
+              sequence.component,
+              sequence.xvalues.get(i),
+              sequence.yvalues.get(i));
+        }
+      }
+    }
   }
 }
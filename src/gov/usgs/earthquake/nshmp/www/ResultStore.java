@@ -0,0 +1,325 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Joiner;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import gov.usgs.earthquake.nshmp.www.meta.Metadata;
+
+/**
+ * Append-only, disk-backed store of calculation results that survives
+ * redeploys and restarts.
+ *
+ * <p>Results are UTF-8 strings (JSON) addressed by the SHA-256 digest of a
+ * key that fully identifies a result, including the versions of the code and
+ * models used to compute it; see {@link #key(String, List, Object...)}. Each record
+ * comprises the 32-byte digest, the payload length and CRC-32, and the
+ * payload. Records are appended as results are computed and never rewritten.
+ *
+ * <p>On {@link #open()}, existing records are memory-mapped and indexed by
+ * digest, so lookups are a hash table probe and a copy out of the page cache.
+ * A torn record left by an unclean shutdown is discarded. Once the file
+ * reaches its size limit, further results are not stored. If the store can
+ * not be opened, or is in use by another process, lookups miss and writes are
+ * ignored; the store is a cache and never fails a request. Results computed
+ * with code or models of unknown version are not stored.
+ */
+final class ResultStore {
+
+  private static final int MAGIC = 0x4e524553; // "NRES"
+  private static final String UNKNOWN_VERSION = "unknown";
+
+  /*
+   * Version of the serialized form of results. Increment when a change to
+   * response classes or their serialization, e.g. rounding, is not captured
+   * by the nshmp-haz-ws version, as in development builds.
+   */
+  private static final int FORMAT_VERSION = 2;
+  private static final int HEADER_SIZE = Integer.BYTES;
+  private static final int DIGEST_SIZE = 32;
+  private static final int RECORD_HEADER_SIZE = DIGEST_SIZE + 2 * Integer.BYTES;
+
+  private final Path file;
+  private final long maxBytes;
+  private final Map<HashCode, Entry> index = new HashMap<>();
+
+  private FileChannel channel;
+  private FileLock lock;
+  private MappedByteBuffer mapped;
+  private long end;
+
+  /**
+   * Create a new result store. The store must be opened before use.
+   *
+   * @param file backing the store
+   * @param maxBytes the maximum size of the store file; zero disables
+   *        the store
+   */
+  ResultStore(Path file, long maxBytes) {
+    checkArgument(maxBytes >= 0, "maxBytes [%s] may not be negative", maxBytes);
+    checkArgument(maxBytes < Integer.MAX_VALUE, "maxBytes [%s] must be < 2GB", maxBytes);
+    this.file = file;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Open the store, indexing any previously stored results.
+   *
+   * @return the number of results loaded
+   * @throws IOException if the store file can not be read or created, or is
+   *         locked by another process
+   */
+  synchronized int open() throws IOException {
+    if (maxBytes == 0 || channel != null) {
+      return index.size();
+    }
+    Files.createDirectories(file.getParent());
+    FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE);
+    try {
+      FileLock lock = channel.tryLock();
+      if (lock == null) {
+        throw new IOException("Result store in use by another process: " + file);
+      }
+      long size = channel.size();
+      if (size < HEADER_SIZE || readInt(channel, 0) != MAGIC) {
+        channel.truncate(0);
+        writeFully(channel, (ByteBuffer) ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).flip(), 0);
+        size = HEADER_SIZE;
+      }
+      size = Math.min(size, maxBytes);
+      MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0, size);
+      long end = scan(mapped);
+      if (end < channel.size()) {
+        channel.truncate(end);
+      }
+      this.channel = channel;
+      this.lock = lock;
+      this.mapped = mapped;
+      this.end = end;
+      return index.size();
+    } catch (IOException | RuntimeException e) {
+      index.clear();
+      channel.close();
+      throw e;
+    }
+  }
+
+  /* Index records; returns the position following the last valid record. */
+  private long scan(MappedByteBuffer buffer) {
+    int position = HEADER_SIZE;
+    CRC32 crc = new CRC32();
+    while (position + RECORD_HEADER_SIZE <= buffer.limit()) {
+      byte[] digest = new byte[DIGEST_SIZE];
+      ByteBuffer record = buffer.duplicate();
+      record.position(position);
+      record.get(digest);
+      int length = record.getInt();
+      int checksum = record.getInt();
+      int payload = position + RECORD_HEADER_SIZE;
+      if (length < 0 || payload + length > buffer.limit()) {
+        break;
+      }
+      record.limit(payload + length);
+      crc.reset();
+      crc.update(record);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      index.put(HashCode.fromBytes(digest), new Entry(payload, length));
+      position = payload + length;
+    }
+    return position;
+  }
+
+  /**
+   * Flush stored results to disk and close the store.
+   */
+  synchronized void close() throws IOException {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.force(true);
+      lock.release();
+    } finally {
+      channel.close();
+      channel = null;
+      lock = null;
+      mapped = null;
+      index.clear();
+    }
+  }
+
+  /**
+   * Return the result stored for a key, if any.
+   */
+  Optional<String> read(String key) {
+    if (!versioned(key)) {
+      return Optional.empty();
+    }
+    HashCode digest = digest(key);
+    Entry entry;
+    MappedByteBuffer mapped;
+    FileChannel channel;
+    synchronized (this) {
+      entry = index.get(digest);
+      mapped = this.mapped;
+      channel = this.channel;
+    }
+    if (entry == null) {
+      return Optional.empty();
+    }
+    try {
+      ByteBuffer payload;
+      if (entry.position + entry.length <= mapped.limit()) {
+        payload = mapped.duplicate();
+        payload.position((int) entry.position).limit((int) entry.position + entry.length);
+      } else {
+        /* Appended since the store was opened. */
+        payload = ByteBuffer.allocate(entry.length);
+        while (payload.hasRemaining()) {
+          if (channel.read(payload, entry.position + payload.position()) < 0) {
+            return Optional.empty();
+          }
+        }
+        payload.flip();
+      }
+      return Optional.of(UTF_8.decode(payload).toString());
+    } catch (IOException e) {
+      /* Closed concurrently or unreadable; treat as a miss. */
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Append a result for a key. Does nothing if the store is not open, is
+   * full, or already holds a result for the key.
+   */
+  synchronized void write(String key, String result) {
+    if (!versioned(key)) {
+      return;
+    }
+    HashCode digest = digest(key);
+    if (channel == null || index.containsKey(digest)) {
+      return;
+    }
+    byte[] payload = result.getBytes(UTF_8);
+    long size = RECORD_HEADER_SIZE + payload.length;
+    if (end + size > maxBytes) {
+      return;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer record = ByteBuffer.allocate((int) size)
+        .put(digest.asBytes())
+        .putInt(payload.length)
+        .putInt((int) crc.getValue())
+        .put(payload);
+    record.flip();
+    try {
+      writeFully(channel, record, end);
+      index.put(digest, new Entry(end + RECORD_HEADER_SIZE, payload.length));
+      end += size;
+    } catch (IOException e) {
+      /* Partial record will be discarded on next open. */
+    }
+  }
+
+  /**
+   * Return the JSON response stored for a key or, if absent, compute, store
+   * and return it. The response is serialized with {@link ServletUtil#GSON}
+   * and returned as a tree that serializes identically.
+   */
+  JsonElement get(String key, Callable<?> response) throws Exception {
+    Optional<String> stored = read(key);
+    if (stored.isPresent()) {
+      return new JsonParser().parse(stored.get());
+    }
+    JsonElement json = ServletUtil.GSON.toJsonTree(response.call());
+    write(key, json.toString());
+    return json;
+  }
+
+  /**
+   * Create a store key. The key combines the name of the service, the versions
+   * of nshmp-haz, nshmp-haz-ws and the result format, the models used and
+   * their versions, and the string representations of the remaining request
+   * parameters, which should fully identify a result. Results stored by a
+   * prior deployment are therefore never returned once code changes.
+   */
+  static String key(String service, List<Model> models, Object... parameters) {
+    StringBuilder sb = new StringBuilder(service)
+        .append("|nshmp-haz@").append(Metadata.nshmpHazVersion())
+        .append("|nshmp-haz-ws@").append(Metadata.nshmpHazWsVersion())
+        .append("|format@").append(FORMAT_VERSION);
+    for (Model model : models) {
+      sb.append('|').append(model.name())
+          .append('@').append(Metadata.modelVersion("E" + model.year));
+    }
+    return Joiner.on('|').useForNull("null").appendTo(sb.append('|'), parameters).toString();
+  }
+
+  /*
+   * Results of code or models of unknown version, e.g. outside a versioned
+   * build, are neither stored nor read as they would survive changes to the
+   * code or models; see ServletUtil.extractModel().
+   */
+  private static boolean versioned(String key) {
+    return !key.contains("@" + UNKNOWN_VERSION + "|");
+  }
+
+  private static HashCode digest(String key) {
+    return Hashing.sha256().hashString(key, UTF_8);
+  }
+
+  private static int readInt(FileChannel channel, long position) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        return 0;
+      }
+    }
+    return buffer.getInt(0);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static final class Entry {
+
+    final long position;
+    final int length;
+
+    Entry(long position, int length) {
+      this.position = position;
+      this.length = length;
+    }
+  }
+}
@@ -1,48 +1,89 @@
 package gov.usgs.earthquake.nshmp.www;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static com.google.common.util.concurrent.Futures.addCallback;
 import static gov.usgs.earthquake.nshmp.www.meta.Region.CEUS;
 import static gov.usgs.earthquake.nshmp.www.meta.Region.COUS;
 import static gov.usgs.earthquake.nshmp.www.meta.Region.WUS;
 import static java.lang.Runtime.getRuntime;
 
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URL;
 import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
 import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Stream;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
+import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebListener;
 import javax.servlet.http.HttpServletRequest;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import gov.usgs.earthquake.nshmp.calc.HazardCalcs;
 import gov.usgs.earthquake.nshmp.calc.Site;
 import gov.usgs.earthquake.nshmp.calc.ValueFormat;
 import gov.usgs.earthquake.nshmp.calc.Vs30;
 import gov.usgs.earthquake.nshmp.eq.model.HazardModel;
+import gov.usgs.earthquake.nshmp.geo.Location;
 import gov.usgs.earthquake.nshmp.gmm.Imt;
+import gov.usgs.earthquake.nshmp.internal.Parsing;
+import gov.usgs.earthquake.nshmp.internal.Parsing.Delimiter;
+import gov.usgs.earthquake.nshmp.www.Util.Format;
 import gov.usgs.earthquake.nshmp.www.meta.Edition;
+import gov.usgs.earthquake.nshmp.www.meta.Metadata;
 import gov.usgs.earthquake.nshmp.www.meta.ParamType;
 import gov.usgs.earthquake.nshmp.www.meta.Region;
 import gov.usgs.earthquake.nshmp.www.meta.Util;
@@ -65,7 +106,13 @@ public class ServletUtil implements ServletContextListener {
       "yyyy-MM-dd'T'HH:mm:ssXXX");
 
   static final ListeningExecutorService CALC_EXECUTOR;
-  static final ExecutorService TASK_EXECUTOR;
+  static final ListeningExecutorService GMM_EXECUTOR;
+  static final ListeningExecutorService JOIN_EXECUTOR;
+  static final TaskScheduler TASK_SCHEDULER;
+  static final HazardCache HAZARD_CACHE;
+  static final DeaggHazardCache DEAGG_HAZARD_CACHE;
+  static final ResultStore RESULT_STORE;
+  static final JobQueue JOB_QUEUE;
 
   static final int THREAD_COUNT;
 
@@ -78,11 +125,107 @@ public class ServletUtil implements ServletContextListener {
   private static boolean throttleIp = true;
   private static final String THROTTLE_IP_KEY = "throttleIp";
 
+  /*
+   * Task scheduler system properties: the number of hazard and deagg tasks that
+   * may run at one time, and the number of tasks that may wait in each lane.
+   */
+  private static final String MAX_TASKS_KEY = "maxTasks";
+  private static final String MAX_QUEUED_TASKS_KEY = "maxQueuedTasks";
+  private static final int MAX_QUEUED_TASKS = 200;
+
+  /*
+   * Ground motion model service system property: the number of threads used
+   * to evaluate the rows of POST requests (default: the processor count).
+   */
+  private static final String GMM_THREADS_KEY = "gmmThreads";
+
+  /*
+   * Model cache system properties: the memory budget for models in megabytes
+   * (default 75% of the maximum heap), and a comma-delimited list of models,
+   * e.g. 'WUS_2018,CEUS_2018', that are never evicted.
+   */
+  private static final String MODEL_CACHE_SIZE_KEY = "modelCacheSize";
+  private static final String PINNED_MODELS_KEY = "pinnedModels";
+  private static final String PINNED_MODELS = "WUS_2018,CEUS_2018";
+
+  /*
+   * Model preload system property: 'all' or a comma-delimited list of models
+   * to load, and warm up, at startup.
+   */
+  private static final String PRELOAD_MODELS_KEY = "preloadModels";
+
+  /* Hazard curve cache system property: the cache budget in megabytes. */
+  private static final String HAZARD_CACHE_SIZE_KEY = "hazardCacheSize";
+  private static final int HAZARD_CACHE_SIZE = 256;
+
+  /* Deagg hazard cache system property: the cache budget in megabytes. */
+  private static final String DEAGG_HAZARD_CACHE_SIZE_KEY = "deaggHazardCacheSize";
+  private static final int DEAGG_HAZARD_CACHE_SIZE = 512;
+
+  /*
+   * Result store system properties: the directory of the store file and its
+   * maximum size in megabytes (0 disables the store).
+   */
+  private static final String RESULT_STORE_DIR_KEY = "resultStoreDir";
+  private static final String RESULT_STORE_SIZE_KEY = "resultStoreSize";
+  private static final int RESULT_STORE_SIZE = 1024;
+  private static final String RESULT_STORE_FILE = "results.dat";
+
+  /*
+   * Job queue system properties: the directory of job results, the number of
+   * jobs that may run at one time and that may wait, and the number of hours
+   * for which finished jobs are retained.
+   */
+  private static final String JOB_DIR_KEY = "jobDir";
+  private static final String MAX_JOBS_KEY = "maxJobs";
+  private static final int MAX_JOBS = 2;
+  private static final String MAX_QUEUED_JOBS_KEY = "maxQueuedJobs";
+  private static final int MAX_QUEUED_JOBS = 100;
+  private static final String JOB_RETENTION_KEY = "jobRetention";
+  private static final int JOB_RETENTION = 24;
+
+  /*
+   * Model extraction system property: the directory to which models are copied
+   * when the WAR is not unpacked by the servlet container.
+   */
+  private static final String MODEL_EXTRACT_DIR_KEY = "modelExtractDir";
+  private static final Path MODEL_EXTRACT_DIR = Paths.get(System.getProperty(
+      MODEL_EXTRACT_DIR_KEY,
+      Paths.get(System.getProperty("java.io.tmpdir"), "nshmp-haz-ws", "models").toString()));
+
   static {
     /* TODO modified for deagg-epsilon branch; should be context var */
     THREAD_COUNT = getRuntime().availableProcessors();
     CALC_EXECUTOR = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(THREAD_COUNT));
-    TASK_EXECUTOR = Executors.newSingleThreadExecutor();
+    GMM_EXECUTOR = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+        Integer.getInteger(GMM_THREADS_KEY, THREAD_COUNT)));
+    JOIN_EXECUTOR = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder()
+            .setNameFormat("nshmp-join-%d")
+            .setDaemon(true)
+            .build()));
+    TASK_SCHEDULER = new TaskScheduler(
+        Integer.getInteger(MAX_TASKS_KEY, Math.max(1, THREAD_COUNT / 8)),
+        Integer.getInteger(MAX_QUEUED_TASKS_KEY, MAX_QUEUED_TASKS),
+        CALC_EXECUTOR,
+        THREAD_COUNT);
+    HAZARD_CACHE = new HazardCache(
+        Integer.getInteger(HAZARD_CACHE_SIZE_KEY, HAZARD_CACHE_SIZE) * 1024L * 1024L);
+    DEAGG_HAZARD_CACHE = new DeaggHazardCache(
+        Integer.getInteger(DEAGG_HAZARD_CACHE_SIZE_KEY, DEAGG_HAZARD_CACHE_SIZE) * 1024L * 1024L);
+    RESULT_STORE = new ResultStore(
+        Paths.get(System.getProperty(
+            RESULT_STORE_DIR_KEY,
+            Paths.get(System.getProperty("java.io.tmpdir"), "nshmp-haz-ws").toString()))
+            .resolve(RESULT_STORE_FILE),
+        Integer.getInteger(RESULT_STORE_SIZE_KEY, RESULT_STORE_SIZE) * 1024L * 1024L);
+    JOB_QUEUE = new JobQueue(
+        Paths.get(System.getProperty(
+            JOB_DIR_KEY,
+            Paths.get(System.getProperty("java.io.tmpdir"), "nshmp-haz-ws", "jobs").toString())),
+        Integer.getInteger(MAX_JOBS_KEY, MAX_JOBS),
+        Integer.getInteger(MAX_QUEUED_JOBS_KEY, MAX_QUEUED_JOBS),
+        Integer.getInteger(JOB_RETENTION_KEY, JOB_RETENTION) * 3600L * 1000L);
     GSON = new GsonBuilder()
         .registerTypeAdapter(Edition.class, new Util.EnumSerializer<Edition>())
         .registerTypeAdapter(Region.class, new Util.EnumSerializer<Region>())
@@ -100,8 +243,18 @@ public class ServletUtil implements ServletContextListener {
 
   @Override
   public void contextDestroyed(ServletContextEvent e) {
+    JOB_QUEUE.shutdown();
+    TASK_SCHEDULER.shutdown();
     CALC_EXECUTOR.shutdown();
-    TASK_EXECUTOR.shutdown();
+    GMM_EXECUTOR.shutdown();
+    JOIN_EXECUTOR.shutdown();
+    HAZARD_CACHE.clear();
+    DEAGG_HAZARD_CACHE.clear();
+    try {
+      RESULT_STORE.close();
+    } catch (IOException ioe) {
+      e.getServletContext().log("Error closing result store", ioe);
+    }
   }
 
   @Override
@@ -112,20 +265,222 @@ public class ServletUtil implements ServletContextListener {
     String throttle = System.getProperty(THROTTLE_IP_KEY);
     throttleIp = throttle != null ? Boolean.parseBoolean(throttle) : throttleIp;
 
+    try {
+      int results = RESULT_STORE.open();
+      context.log("Result store opened with " + results + " results");
+    } catch (IOException ioe) {
+      context.log("Result store unavailable", ioe);
+    }
+
     INSTALLED_MODELS = Stream.of(Model.values())
         .filter(model -> {
           Path path = Paths.get(context.getRealPath(model.path));
           return Files.isDirectory(path);
         }).toArray(Model[]::new);
 
-    final LoadingCache<Model, HazardModel> modelCache = CacheBuilder.newBuilder().build(
-        new CacheLoader<Model, HazardModel>() {
-          @Override
-          public HazardModel load(Model model) {
-            return loadModel(context, model);
-          }
-        });
+    /*
+     * Models are weighed by their estimated size in KB. Pinned models are
+     * loaded up front and weigh nothing, so their estimated size is deducted
+     * from the budget; Guava evicts the least recently used, unpinned models
+     * once the remainder is exceeded. A single segment applies the budget to
+     * the cache as a whole rather than dividing it between segments. The
+     * budget is at least 1 KB as Guava retains nothing at zero weight.
+     */
+    Set<Model> installed = Sets.immutableEnumSet(Arrays.asList(INSTALLED_MODELS));
+    Map<Model, HazardModel> pinned = loadModels(
+        context,
+        Sets.intersection(
+            readModels(System.getProperty(PINNED_MODELS_KEY, PINNED_MODELS)),
+            installed));
+    long pinnedSize = pinned.values().stream()
+        .mapToLong(ModelWeigher::estimate)
+        .sum();
+    long modelBudget = Long.getLong(
+        MODEL_CACHE_SIZE_KEY,
+        getRuntime().maxMemory() / 1024 / 1024 * 3 / 4) * 1024;
+    context.log("Pinned models " + pinned.keySet() + " use ~" + pinnedSize / 1024 +
+        " of " + modelBudget / 1024 + " MB model cache budget");
+    final LoadingCache<Model, HazardModel> modelCache = CacheBuilder.newBuilder()
+        .concurrencyLevel(1)
+        .maximumWeight(Math.max(1, modelBudget - pinnedSize))
+        .weigher(new ModelWeigher(pinned.keySet()))
+        .recordStats()
+        .build(
+            new CacheLoader<Model, HazardModel>() {
+              @Override
+              public HazardModel load(Model model) {
+                return loadModel(context, model);
+              }
+            });
+    modelCache.putAll(pinned);
     context.setAttribute(MODEL_CACHE_CONTEXT_ID, modelCache);
+
+    String preload = System.getProperty(PRELOAD_MODELS_KEY);
+    if (!isNullOrEmpty(preload)) {
+      Set<Model> models = preload.equals("all")
+          ? installed
+          : Sets.intersection(readModels(preload), installed);
+      preloadModels(context, modelCache, models);
+    }
+  }
+
+  /*
+   * Load models concurrently. Failures are logged and the model omitted from
+   * the returned map.
+   */
+  private static Map<Model, HazardModel> loadModels(ServletContext context, Set<Model> models) {
+    Map<Model, HazardModel> loaded = new EnumMap<>(Model.class);
+    if (models.isEmpty()) {
+      return loaded;
+    }
+    ExecutorService loader = Executors.newFixedThreadPool(models.size());
+    try {
+      Map<Model, Future<HazardModel>> loads = new EnumMap<>(Model.class);
+      for (Model model : models) {
+        loads.put(model, loader.submit(() -> {
+          Stopwatch sw = Stopwatch.createStarted();
+          HazardModel hazardModel = loadModel(context, model);
+          context.log("Loaded " + model.name + " in " + sw);
+          return hazardModel;
+        }));
+      }
+      for (Entry<Model, Future<HazardModel>> load : loads.entrySet()) {
+        try {
+          loaded.put(load.getKey(), load.getValue().get());
+        } catch (ExecutionException ee) {
+          context.log("Error loading " + load.getKey().name, ee.getCause());
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } finally {
+      loader.shutdownNow();
+    }
+    return loaded;
+  }
+
+  /*
+   * Load models concurrently and then run a hazard calculation with each so
+   * that hot code paths are compiled before the first real request. This
+   * blocks context initialization, and therefore request handling, until
+   * complete. Failures are logged; a model that fails to load will be retried
+   * on first request.
+   */
+  private static void preloadModels(
+      ServletContext context,
+      LoadingCache<Model, HazardModel> modelCache,
+      Set<Model> models) {
+
+    if (models.isEmpty()) {
+      return;
+    }
+    Stopwatch total = Stopwatch.createStarted();
+    ExecutorService loader = Executors.newFixedThreadPool(models.size());
+    try {
+      Map<Model, Future<?>> loads = new EnumMap<>(Model.class);
+      for (Model model : models) {
+        loads.put(model, loader.submit(() -> {
+          Stopwatch sw = Stopwatch.createStarted();
+          modelCache.getUnchecked(model);
+          context.log("Preloaded " + model.name + " in " + sw);
+        }));
+      }
+      for (Entry<Model, Future<?>> load : loads.entrySet()) {
+        try {
+          load.getValue().get();
+        } catch (ExecutionException ee) {
+          context.log("Error preloading " + load.getKey().name, ee.getCause());
+        }
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return;
+    } finally {
+      loader.shutdownNow();
+    }
+
+    for (Model model : models) {
+      HazardModel hazardModel = modelCache.getIfPresent(model);
+      if (hazardModel == null) {
+        continue;
+      }
+      try {
+        Stopwatch sw = Stopwatch.createStarted();
+        Site site = Site.builder()
+            .location(WARM_UP_SITES.get(model.region))
+            .vs30(Vs30.VS_760.value())
+            .build();
+        HazardCalcs.hazard(hazardModel, hazardModel.config(), site, CALC_EXECUTOR);
+        context.log("Warmed up " + model.name + " in " + sw);
+      } catch (RuntimeException e) {
+        context.log("Error warming up " + model.name, e);
+      }
+    }
+    context.log("Model preload complete in " + total);
+  }
+
+  /* Representative warm-up sites, by model region. */
+  private static final Map<Region, Location> WARM_UP_SITES = ImmutableMap.of(
+      Region.AK, Location.create(61.2, -149.9),
+      Region.CEUS, Location.create(35.15, -90.05),
+      Region.HI, Location.create(21.3, -157.85),
+      Region.WUS, Location.create(34.05, -118.25));
+
+  /*
+   * Copy a model out of a packed WAR to a local directory, unless already
+   * present, and return the local path. Directories are keyed by the model
+   * version recorded at build time, so a new model release is extracted
+   * afresh; models of unknown version are read from the WAR. Extraction is
+   * to a temporary directory that is moved into place once complete.
+   */
+  private static Path extractModel(Path source, Model model) throws IOException {
+    String version = Metadata.modelVersion("E" + model.year);
+    if (version.equals("unknown")) {
+      return source;
+    }
+    Path target = MODEL_EXTRACT_DIR
+        .resolve(model.region.name().toLowerCase())
+        .resolve(model.year.toLowerCase() + "-" + version);
+    if (Files.isDirectory(target)) {
+      return target;
+    }
+    Files.createDirectories(target.getParent());
+    Path temp = Files.createTempDirectory(target.getParent(), ".extract-");
+    try {
+      try (Stream<Path> paths = Files.walk(source)) {
+        for (Path from : (Iterable<Path>) paths::iterator) {
+          Path to = temp.resolve(source.relativize(from).toString());
+          if (Files.isDirectory(from)) {
+            Files.createDirectories(to);
+          } else {
+            Files.copy(from, to);
+          }
+        }
+      }
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      /* Possibly extracted concurrently by another process. */
+      delete(temp);
+      if (!Files.isDirectory(target)) {
+        throw e;
+      }
+    }
+    return target;
+  }
+
+  private static void delete(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+
+  /* Comma-delimited model identifiers. */
+  private static Set<Model> readModels(String models) {
+    return Parsing.splitToList(models, Delimiter.COMMA).stream()
+        .map(Model::valueOf)
+        .collect(Sets.toImmutableEnumSet());
   }
 
   private static HazardModel loadModel(ServletContext context, Model model) {
@@ -145,23 +500,27 @@ public class ServletUtil implements ServletContextListener {
        * When the web sevice is deployed inside a WAR file (and not unpacked by
        * the servlet container) model resources will not exist on disk as
        * otherwise expected. In this case, load the resources directly out of
-       * the WAR file as well. This is slower, but with the preload option
-       * enabled it may be less of an issue if the models are already in memory.
+       * the WAR file as well. This is slower, so the model is first copied
+       * to a local directory keyed by model version (see extractModel()) from
+       * which it is loaded on this and later startups.
        */
 
       if (uriString.indexOf("!") != -1) {
         uriParts = uri.toString().split("!");
 
+        /* Models may be loaded concurrently; see loadModels(). */
+        URI warUri = URI.create(uriParts[0]);
         try {
-          fs = FileSystems.getFileSystem(
-              URI.create(uriParts[0]));
+          fs = FileSystems.getFileSystem(warUri);
         } catch (FileSystemNotFoundException fnx) {
-          fs = FileSystems.newFileSystem(
-              URI.create(uriParts[0]),
-              new HashMap<String, String>());
+          try {
+            fs = FileSystems.newFileSystem(warUri, new HashMap<String, String>());
+          } catch (FileSystemAlreadyExistsException faex) {
+            fs = FileSystems.getFileSystem(warUri);
+          }
         }
 
-        path = fs.getPath(uriParts[1].replaceAll("%20", " "));
+        path = extractModel(fs.getPath(uriParts[1].replaceAll("%20", " ")), model);
       } else {
         path = Paths.get(uri);
       }
@@ -178,6 +537,270 @@ public class ServletUtil implements ServletContextListener {
         (request.getPathInfo() == null || request.getPathInfo().equals("/"));
   }
 
+  /*
+   * Complete an asynchronous request once the supplied result is available.
+   * The result, or an error message, is serialized to the response on a
+   * container thread so that scheduler threads are not held by slow clients.
+   * Request processing threads are released as soon as a calculation task has
+   * been submitted; see HazardService. A successful result is serialized with
+   * the supplied writer; see resultWriter(). Error messages are always JSON.
+   */
+  static <T> void writeResult(
+      AsyncContext async,
+      ListenableFuture<T> result,
+      String url,
+      ResultWriter<? super T> writer) {
+
+    /*
+     * Calculations may exceed the container default async timeout, which is
+     * therefore disabled, and onTimeout() never called; deadlines are instead
+     * enforced by the task scheduler, which fails the result with a
+     * TimeoutException. If the client goes away, cancel the result so that
+     * queued and running work is abandoned; the scheduler only cancels the
+     * underlying task once all attached requests have done so.
+     */
+    async.setTimeout(0);
+    async.addListener(new AsyncListener() {
+
+      @Override
+      public void onComplete(AsyncEvent event) {}
+
+      @Override
+      public void onTimeout(AsyncEvent event) {}
+
+      @Override
+      public void onError(AsyncEvent event) {
+        result.cancel(true);
+        complete(async);
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {}
+    });
+
+    addCallback(result, new FutureCallback<T>() {
+
+      @Override
+      public void onSuccess(T result) {
+        try {
+          writer.write(result, async.getResponse());
+        } catch (IOException | RuntimeException e) {
+          async.getRequest().getServletContext().log(url, e);
+        } finally {
+          complete(async);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (t instanceof CancellationException) {
+          /* Client disconnected or server shutting down. */
+          complete(async);
+          return;
+        }
+        try {
+          Throwable cause = (t instanceof TimeoutException)
+              ? new TimeoutException("Calculation did not complete in the time allowed")
+              : t;
+          String message = Metadata.errorMessage(url, cause, false);
+          async.getResponse().getWriter().print(message);
+          async.getRequest().getServletContext().log(url, t);
+        } catch (IOException | RuntimeException e) {
+          async.getRequest().getServletContext().log(url, e);
+        } finally {
+          complete(async);
+        }
+      }
+    }, command -> {
+      try {
+        async.start(command);
+      } catch (IllegalStateException e) {
+        /* Request already completed following a client error. */
+      }
+    });
+  }
+
+  /* Serializes a calculation result to a servlet response. */
+  @FunctionalInterface
+  interface ResultWriter<T> {
+    void write(T result, ServletResponse response) throws IOException;
+  }
+
+  /*
+   * The result writer for a requested format; see Util.readFormat(). CSV
+   * layouts are specific to each service, which supplies its own writer, if
+   * any.
+   */
+  static <T> ResultWriter<T> resultWriter(Format format, ResultWriter<T> csvWriter) {
+    switch (format) {
+      case CBOR:
+        return ServletUtil::writeCbor;
+      case CSV:
+        checkArgument(csvWriter != null, "CSV output is not supported by this service");
+        return csvWriter;
+      case COMPACT:
+        throw new IllegalArgumentException("Compact output is not supported by this service");
+      default:
+        return ServletUtil::writeJson;
+    }
+  }
+
+  static void writeJson(Object result, ServletResponse response) throws IOException {
+    GSON.toJson(result, response.getWriter());
+  }
+
+  static final String CBOR_CONTENT_TYPE = "application/cbor";
+
+  /*
+   * Write a result as CBOR. The result is first serialized to a JSON tree so
+   * that the response is structurally identical to, and rounded as, its JSON
+   * form. Services with their own Gson instance may supply a JsonElement.
+   */
+  static void writeCbor(Object result, ServletResponse response) throws IOException {
+    JsonElement tree = (result instanceof JsonElement)
+        ? (JsonElement) result
+        : GSON.toJsonTree(result);
+    response.setContentType(CBOR_CONTENT_TYPE);
+    CborWriter.write(tree, response.getOutputStream());
+  }
+
+  static final String CSV_CONTENT_TYPE = "text/csv; charset=UTF-8";
+
+  /* Newline-delimited JSON, one result per line, for streamed responses. */
+  static final String NDJSON_CONTENT_TYPE = "application/x-ndjson; charset=UTF-8";
+
+  /* Write a CSV comment line: '# key: value'. */
+  static void writeCsvComment(PrintWriter out, String key, Object value) {
+    out.print("# ");
+    out.print(key);
+    out.print(": ");
+    out.print(value);
+    out.print('\n');
+  }
+
+  /*
+   * Write a CSV row. The values of List fields are written as consecutive
+   * columns and doubles are rounded as by DoubleSerializer. Rows are written
+   * directly to the response so that large results stream to the client
+   * rather than being assembled in memory first.
+   */
+  static void writeCsvRow(PrintWriter out, Object... fields) {
+    boolean first = true;
+    for (Object field : fields) {
+      if (field instanceof List) {
+        for (Object value : (List<?>) field) {
+          if (!first) {
+            out.print(',');
+          }
+          out.print(csvField(value));
+          first = false;
+        }
+        continue;
+      }
+      if (!first) {
+        out.print(',');
+      }
+      out.print(csvField(field));
+      first = false;
+    }
+    out.print('\n');
+  }
+
+  private static String csvField(Object value) {
+    if (value == null) {
+      return "";
+    }
+    if (value instanceof Double) {
+      return Double.toString(Util.round((Double) value));
+    }
+    String s = value.toString();
+    if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+      return s;
+    }
+    return '"' + s.replace("\"", "\"\"") + '"';
+  }
+
+  /*
+   * Complete an async request that may already have been completed, first
+   * finishing any compressed output; see CompressionFilter.
+   */
+  static void complete(AsyncContext async) {
+    try {
+      CompressionFilter.finish(async.getResponse());
+    } catch (IOException | RuntimeException e) {
+      /* client disconnected or already completed */
+    }
+    try {
+      async.complete();
+    } catch (IllegalStateException e) {
+      /* already completed */
+    }
+  }
+
+  /*
+   * Write a list of doubles directly to a JsonWriter, rounded as by
+   * DoubleSerializer. Curves and other numeric arrays dominate response size,
+   * and writing them this way avoids building a JsonPrimitive for each value.
+   */
+  static void writeDoubles(JsonWriter out, List<Double> values) throws IOException {
+    out.beginArray();
+    for (Double value : values) {
+      if (value == null) {
+        out.nullValue();
+      } else {
+        out.value(Util.round(value));
+      }
+    }
+    out.endArray();
+  }
+
+  /* Read a list of doubles, or null, written by writeDoubles(). */
+  static List<Double> readDoubles(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    List<Double> values = new ArrayList<>();
+    in.beginArray();
+    while (in.hasNext()) {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        values.add(null);
+      } else {
+        values.add(in.nextDouble());
+      }
+    }
+    in.endArray();
+    return values;
+  }
+
+  /* Read a string, or null. */
+  static String readString(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    return in.nextString();
+  }
+
+  /* Streaming serializer for List<Double> fields; see writeDoubles(). */
+  static final class DoubleListAdapter extends TypeAdapter<List<Double>> {
+
+    @Override
+    public void write(JsonWriter out, List<Double> values) throws IOException {
+      if (values == null) {
+        out.nullValue();
+        return;
+      }
+      writeDoubles(out, values);
+    }
+
+    @Override
+    public List<Double> read(JsonReader in) throws IOException {
+      return readDoubles(in);
+    }
+  }
+
   static Timer timer() {
     return new Timer();
   }
@@ -211,6 +834,9 @@ public class ServletUtil implements ServletContextListener {
     final ServletContext context;
     final Timer timer;
 
+    /* Calculation executor; replaced with a share when scheduled. */
+    Executor executor = CALC_EXECUTOR;
+
     TimedTask(String url, ServletContext context) {
       this.url = url;
       this.context = context;
@@ -219,6 +845,16 @@ public class ServletUtil implements ServletContextListener {
 
     abstract T calc() throws Exception;
 
+    /*
+     * Adapt the result of an identical task, to which this task was attached
+     * in place of being run (see TaskScheduler), to this request. Results that
+     * carry per-request metadata, such as the url and timing, should override
+     * this method to rebuild it.
+     */
+    T attach(T result) {
+      return result;
+    }
+
     @Override
     public T call() throws Exception {
       timer.start();
@@ -226,6 +862,36 @@ public class ServletUtil implements ServletContextListener {
     }
   }
 
+  /*
+   * Run calculations, e.g. hazard for several models or site classes,
+   * concurrently and return their results in order. Each calculation must
+   * distribute its work to a task's share of the CALC_EXECUTOR; it is run on,
+   * and blocks, a JOIN_EXECUTOR thread rather than a thread of the share so
+   * that calculations waiting on their own work can not exhaust the share.
+   * If one calculation fails, or the calling thread is interrupted, the others
+   * are cancelled.
+   */
+  static <T> List<T> calcAll(List<? extends Callable<T>> calcs) throws Exception {
+    if (calcs.size() == 1) {
+      return ImmutableList.of(calcs.get(0).call());
+    }
+    List<ListenableFuture<T>> futures = new ArrayList<>(calcs.size());
+    for (Callable<T> calc : calcs) {
+      futures.add(JOIN_EXECUTOR.submit(calc));
+    }
+    ListenableFuture<List<T>> results = Futures.allAsList(futures);
+    try {
+      return results.get();
+    } catch (InterruptedException e) {
+      results.cancel(true);
+      throw e;
+    } catch (ExecutionException e) {
+      results.cancel(true);
+      Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
+      throw e;
+    }
+  }
+
   /*
    * For sites located west of -115 (in the WUS but not in the CEUS-WUS overlap
    * zone) and site classes of vs30=760, client requests come in with
@@ -125,8 +125,8 @@ public class SourceServices extends NshmpServlet {
           EnumSet.allOf(Region.class));
 
       returnPeriod = new DoubleParameter(
-          "Return period (in years)",
-          ParamType.NUMBER,
+          "Return period(s) (in years); may be comma-delimited",
+          ParamType.STRING,
           100.0,
           1e6);
 
@@ -0,0 +1,404 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.IntSupplier;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import gov.usgs.earthquake.nshmp.www.ServletUtil.TimedTask;
+
+/**
+ * Bounded, multi-lane scheduler for calculation tasks.
+ *
+ * <p>Tasks are submitted to a {@link Lane} and held in a per-lane FIFO queue.
+ * At most {@code maxTasks} tasks run at any one time; as tasks complete, the
+ * next task is taken from the lanes in round-robin order so that a backlog of
+ * long running tasks in one lane (e.g. deaggregations) does not starve another
+ * (e.g. hazard). Each running task is given a share of the calculation
+ * executor; see {@link CalcSlice}.
+ *
+ * <p>Tasks may also be submitted with a key that identifies the calculation
+ * being performed. Identical requests that arrive while a prior task with the
+ * same key is queued or running are attached to the prior task rather than
+ * being queued and recomputed.
+ *
+ * <p>Each lane has a deadline, measured from submission, so that time spent
+ * waiting in a queue counts against it. A task that misses its deadline fails
+ * with a {@code TimeoutException}. Cancelling a returned future, or missing
+ * the deadline, cancels the task: queued tasks are dropped without running and
+ * running tasks are interrupted and their share of the calculation executor
+ * stops accepting new work. The share of a task that completes or fails is
+ * likewise cancelled, so that calculations it abandoned stop. A keyed task is
+ * only cancelled once every request attached to it has been cancelled.
+ */
+final class TaskScheduler {
+
+  /*
+   * Task queues. Deadlines, in seconds, may be overridden with the system
+   * properties 'hazardTimeout', 'deaggTimeout', and 'rateTimeout'; a value of
+   * zero disables the deadline.
+   */
+  enum Lane {
+    HAZARD(120),
+    DEAGG(300),
+    RATE(60);
+
+    final long timeout;
+
+    Lane(long timeout) {
+      this.timeout = Long.getLong(name().toLowerCase() + "Timeout", timeout);
+    }
+  }
+
+  private final int maxTasks;
+  private final int maxQueued;
+  private final int threads;
+  private final Executor calcExecutor;
+  private final ExecutorService taskExecutor;
+  private final ScheduledExecutorService deadlines;
+  private final Map<Lane, Queue<ListenableFutureTask<?>>> queues;
+  private final Map<List<Object>, Flight<?>> inFlight;
+
+  private volatile int running;
+  private int laneIndex;
+
+  /**
+   * Create a new task scheduler.
+   *
+   * @param maxTasks the maximum number of tasks that may run simultaneously
+   * @param maxQueued the maximum number of tasks that may wait in each lane
+   * @param calcExecutor the shared calculation executor
+   * @param threads the number of threads backing {@code calcExecutor}
+   */
+  TaskScheduler(int maxTasks, int maxQueued, Executor calcExecutor, int threads) {
+    checkArgument(maxTasks > 0, "maxTasks [%s] must be positive", maxTasks);
+    checkArgument(maxQueued > 0, "maxQueued [%s] must be positive", maxQueued);
+    this.maxTasks = maxTasks;
+    this.maxQueued = maxQueued;
+    this.threads = threads;
+    this.calcExecutor = checkNotNull(calcExecutor);
+    this.taskExecutor = Executors.newFixedThreadPool(
+        maxTasks,
+        new ThreadFactoryBuilder()
+            .setNameFormat("nshmp-task-%d")
+            .setDaemon(true)
+            .build());
+    this.deadlines = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder()
+            .setNameFormat("nshmp-deadline-%d")
+            .setDaemon(true)
+            .build());
+    this.queues = new EnumMap<>(Lane.class);
+    for (Lane lane : Lane.values()) {
+      queues.put(lane, new ArrayDeque<>());
+    }
+    this.inFlight = new HashMap<>();
+  }
+
+  /**
+   * Submit a task to the specified lane.
+   *
+   * @param lane to queue task in
+   * @param task to run
+   * @throws RejectedExecutionException if the lane is full or the scheduler
+   *         has been shut down
+   */
+  <T> ListenableFuture<T> submit(Lane lane, TimedTask<T> task) {
+    CalcSlice slice = new CalcSlice(calcExecutor, this::parallelism);
+    task.executor = slice;
+    ListenableFutureTask<T> future = ListenableFutureTask.create(task);
+    synchronized (this) {
+      if (taskExecutor.isShutdown()) {
+        throw new RejectedExecutionException("Task scheduler has been shut down");
+      }
+      Queue<ListenableFutureTask<?>> queue = queues.get(lane);
+      if (queue.size() >= maxQueued) {
+        throw new RejectedExecutionException(
+            "Too many queued " + lane.name().toLowerCase() + " requests; try again later");
+      }
+      queue.add(future);
+      dispatch();
+    }
+    /* Work left on the slice by a task that has returned is abandoned. */
+    future.addListener(() -> {
+      slice.cancel();
+      if (future.isCancelled()) {
+        dequeue(lane, future);
+      }
+    }, directExecutor());
+    return (lane.timeout > 0)
+        ? Futures.withTimeout(future, lane.timeout, SECONDS, deadlines)
+        : future;
+  }
+
+  private synchronized void dequeue(Lane lane, ListenableFutureTask<?> future) {
+    queues.get(lane).remove(future);
+  }
+
+  /**
+   * Submit a task to the specified lane, or, if a task with an equal key was
+   * previously submitted to the lane and has not yet completed, return the
+   * future of the prior task. Keys must implement {@code equals()} and
+   * {@code hashCode()} and should fully identify the result of a task. A
+   * caller attached to a prior task receives its result as adapted by
+   * {@code task.attach()}, e.g. with the url and timing of the caller.
+   * Cancelling the returned future detaches the caller from the task; the task
+   * itself is cancelled when no callers remain.
+   *
+   * @param lane to queue task in
+   * @param key identifying the calculation performed by {@code task}
+   * @param task to run
+   * @throws RejectedExecutionException if the lane is full or the scheduler
+   *         has been shut down
+   */
+  @SuppressWarnings("unchecked")
+  <T> ListenableFuture<T> submit(Lane lane, Object key, TimedTask<T> task) {
+    List<Object> id = ImmutableList.of(lane, key);
+    synchronized (this) {
+      Flight<T> flight = (Flight<T>) inFlight.get(id);
+      if (flight == null) {
+        flight = new Flight<>(submit(lane, task));
+        inFlight.put(id, flight);
+        Flight<T> added = flight;
+        flight.future.addListener(() -> release(id, added), directExecutor());
+        return flight.attach();
+      }
+      /* Joining callers time their wait and rebuild per-request metadata. */
+      task.timer.start();
+      return Futures.transform(flight.attach(), task::attach, directExecutor());
+    }
+  }
+
+  private synchronized void release(List<Object> id, Flight<?> flight) {
+    inFlight.remove(id, flight);
+  }
+
+  /*
+   * A keyed task shared by one or more callers. Each caller receives a view of
+   * the task future that may be cancelled independently; the task future is
+   * cancelled with the last view.
+   */
+  private final class Flight<T> {
+
+    final ListenableFuture<T> future;
+    int callers;
+
+    Flight(ListenableFuture<T> future) {
+      this.future = future;
+    }
+
+    /* Caller must hold scheduler lock. */
+    ListenableFuture<T> attach() {
+      callers++;
+      ListenableFuture<T> view = Futures.nonCancellationPropagating(future);
+      view.addListener(() -> {
+        if (view.isCancelled()) {
+          detach();
+        }
+      }, directExecutor());
+      return view;
+    }
+
+    private void detach() {
+      synchronized (TaskScheduler.this) {
+        if (--callers == 0) {
+          future.cancel(true);
+        }
+      }
+    }
+  }
+
+  /*
+   * Run a command after a delay on the deadline thread; the command should be
+   * brief. Throws RejectedExecutionException once the scheduler is shut down.
+   */
+  void schedule(Runnable command, long delayMillis) {
+    deadlines.schedule(command, delayMillis, MILLISECONDS);
+  }
+
+  /* The maximum number of tasks that may run simultaneously. */
+  int maxTasks() {
+    return maxTasks;
+  }
+
+  /* The number of tasks currently running. */
+  int running() {
+    return running;
+  }
+
+  /* The number of tasks waiting in the supplied lane. */
+  synchronized int queued(Lane lane) {
+    return queues.get(lane).size();
+  }
+
+  void shutdown() {
+    synchronized (this) {
+      for (Queue<ListenableFutureTask<?>> queue : queues.values()) {
+        List<ListenableFutureTask<?>> tasks = new ArrayList<>(queue);
+        queue.clear();
+        tasks.forEach(task -> task.cancel(false));
+      }
+      inFlight.clear();
+    }
+    taskExecutor.shutdownNow();
+    deadlines.shutdownNow();
+  }
+
+  /*
+   * Calculation threads are split evenly between running tasks. The share is
+   * recomputed as calculation subtasks are submitted so that a task running
+   * alone may use all available threads.
+   */
+  private int parallelism() {
+    return Math.max(1, threads / Math.max(1, running));
+  }
+
+  /* Start queued tasks while capacity remains; caller must hold lock. */
+  private void dispatch() {
+    while (running < maxTasks) {
+      ListenableFutureTask<?> next = poll();
+      if (next == null) {
+        return;
+      }
+      running++;
+      taskExecutor.execute(() -> run(next));
+    }
+  }
+
+  /* Round-robin across lanes, skipping cancelled tasks; caller must hold lock. */
+  private ListenableFutureTask<?> poll() {
+    Lane[] lanes = Lane.values();
+    for (int i = 0; i < lanes.length; i++) {
+      Lane lane = lanes[(laneIndex + i) % lanes.length];
+      Queue<ListenableFutureTask<?>> queue = queues.get(lane);
+      ListenableFutureTask<?> task = queue.poll();
+      while (task != null && task.isCancelled()) {
+        task = queue.poll();
+      }
+      if (task != null) {
+        laneIndex = (lane.ordinal() + 1) % lanes.length;
+        return task;
+      }
+    }
+    return null;
+  }
+
+  private void run(ListenableFutureTask<?> task) {
+    try {
+      task.run();
+    } finally {
+      synchronized (this) {
+        running--;
+        dispatch();
+      }
+    }
+  }
+
+  /**
+   * Executor that limits the number of concurrently executing commands handed
+   * to a shared delegate. Commands in excess of the permitted parallelism wait
+   * in a local queue and are passed to the delegate as prior commands
+   * complete. Commands never block a delegate thread while waiting.
+   *
+   * <p>Once cancelled, a slice rejects new commands and drops those waiting in
+   * its queue. Calculation steps chained with {@code Futures.transform()} and
+   * the like fail rather than run, so an abandoned calculation unwinds once
+   * the commands already running complete.
+   */
+  static final class CalcSlice implements Executor {
+
+    private final Executor delegate;
+    private final IntSupplier parallelism;
+    private final Queue<Runnable> queue = new ArrayDeque<>();
+    private int active;
+    private boolean cancelled;
+
+    CalcSlice(Executor delegate, IntSupplier parallelism) {
+      this.delegate = delegate;
+      this.parallelism = parallelism;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      checkNotNull(command);
+      synchronized (this) {
+        if (cancelled) {
+          throw new RejectedExecutionException("Calculation cancelled");
+        }
+        if (active >= parallelism.getAsInt()) {
+          queue.add(command);
+          return;
+        }
+        active++;
+      }
+      submit(command);
+    }
+
+    private void submit(Runnable command) {
+      try {
+        delegate.execute(() -> {
+          try {
+            command.run();
+          } finally {
+            next();
+          }
+        });
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          active--;
+        }
+        throw e;
+      }
+    }
+
+    synchronized void cancel() {
+      cancelled = true;
+      queue.clear();
+    }
+
+    /*
+     * Queued commands of a cancelled slice are dropped rather than run. A task
+     * blocked waiting on dropped work is released by the interrupt that
+     * accompanies cancellation of its future.
+     */
+    private void next() {
+      Runnable command = null;
+      synchronized (this) {
+        if (cancelled) {
+          queue.clear();
+          active--;
+          return;
+        }
+        if (active <= parallelism.getAsInt()) {
+          command = queue.poll();
+        }
+        if (command == null) {
+          active--;
+          return;
+        }
+      }
+      submit(command);
+    }
+  }
+}
@@ -0,0 +1,344 @@
+package gov.usgs.earthquake.nshmp.www;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.util.concurrent.Futures.addCallback;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntFunction;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import gov.usgs.earthquake.nshmp.www.NshmpServlet.UrlHelper;
+import gov.usgs.earthquake.nshmp.www.ServletUtil.TimedTask;
+import gov.usgs.earthquake.nshmp.www.TaskScheduler.Lane;
+
+/**
+ * Runs a numbered sequence of tasks, such as the sites of a batch request,
+ * through the {@link ServletUtil#TASK_SCHEDULER} and streams their results to
+ * an asynchronous response in order of completion.
+ *
+ * <p>Only a bounded window of tasks is submitted at any one time, so a large
+ * batch neither floods the scheduler queue nor holds more than a window of
+ * results in memory, and it competes fairly with other requests. Tasks are
+ * created as they are submitted. A failed task is reported by the writer and
+ * the stream continues; a task rejected by a full queue is retried once an
+ * in-flight task completes or, if none are in flight, after a short delay, so
+ * a stream that arrives under load waits for capacity rather than failing.
+ * If the client disconnects, in-flight tasks are cancelled and no further
+ * tasks are submitted.
+ *
+ * <p>A stream may instead be written to a file, as the result of a job run
+ * independently of any request; see {@link JobQueue}.
+ */
+final class TaskStream<T> {
+
+  /* Writes the results of a stream to a response. */
+  interface Writer<T> {
+
+    /* Called once, before any results are written. */
+    default void start(PrintWriter out) throws IOException {}
+
+    void result(PrintWriter out, int index, T result) throws IOException;
+
+    void error(PrintWriter out, int index, String message) throws IOException;
+  }
+
+  private final PrintWriter out;
+  private final ServletContext context;
+  private final Executor callbackExecutor;
+  private final Runnable onComplete;
+  private final String url;
+  private final Lane lane;
+  private final int size;
+  private final IntFunction<? extends TimedTask<T>> tasks;
+  private final Writer<T> writer;
+  private final int window;
+
+  /* Delay before resubmitting rejected tasks when none are in flight. */
+  private static final long RETRY_DELAY = 1000;
+
+  private final Queue<Integer> retries = new ArrayDeque<>();
+  private final Set<ListenableFuture<T>> inFlight = new HashSet<>();
+  private int next;
+  private boolean cancelled;
+
+  private TaskStream(
+      PrintWriter out,
+      ServletContext context,
+      Executor callbackExecutor,
+      Runnable onComplete,
+      String url,
+      Lane lane,
+      int size,
+      IntFunction<? extends TimedTask<T>> tasks,
+      Writer<T> writer) {
+
+    checkArgument(size >= 0, "size [%s] may not be negative", size);
+    this.out = out;
+    this.context = context;
+    this.callbackExecutor = callbackExecutor;
+    this.onComplete = onComplete;
+    this.url = url;
+    this.lane = lane;
+    this.size = size;
+    this.tasks = tasks;
+    this.writer = writer;
+    this.window = Math.max(2, ServletUtil.TASK_SCHEDULER.maxTasks());
+  }
+
+  /**
+   * Stream the results of {@code size} tasks to a response or, if the request
+   * asks to be handled asynchronously, submit them as a job to the
+   * {@link ServletUtil#JOB_QUEUE}. The response content type should be set to
+   * that of the results before calling this method.
+   *
+   * @param request to respond to
+   * @param response to write to
+   * @param urlHelper of the request
+   * @param lane to submit tasks to
+   * @param size the number of tasks
+   * @param tasks that creates the task with the supplied index
+   * @param writer of results
+   */
+  static <T> void respond(
+      HttpServletRequest request,
+      HttpServletResponse response,
+      UrlHelper urlHelper,
+      Lane lane,
+      int size,
+      IntFunction<? extends TimedTask<T>> tasks,
+      Writer<T> writer) throws IOException {
+
+    if (JobQueue.isJobRequest(request)) {
+      ServletUtil.JOB_QUEUE.submit(request, response, urlHelper, lane, size, tasks, writer);
+      return;
+    }
+    start(request.startAsync(request, response), urlHelper.url, lane, size, tasks, writer);
+  }
+
+  /**
+   * Start streaming the results of {@code size} tasks to an asynchronous
+   * response. The async request is completed once all results are written.
+   *
+   * @param async context of the request
+   * @param url of the request, for logging
+   * @param lane to submit tasks to
+   * @param size the number of tasks
+   * @param tasks that creates the task with the supplied index
+   * @param writer of results
+   */
+  static <T> void start(
+      AsyncContext async,
+      String url,
+      Lane lane,
+      int size,
+      IntFunction<? extends TimedTask<T>> tasks,
+      Writer<T> writer) throws IOException {
+
+    TaskStream<T> stream = new TaskStream<>(
+        async.getResponse().getWriter(),
+        async.getRequest().getServletContext(),
+        command -> {
+          try {
+            async.start(command);
+          } catch (IllegalStateException e) {
+            /* Request already completed following a client error. */
+          }
+        },
+        () -> ServletUtil.complete(async),
+        url,
+        lane,
+        size,
+        tasks,
+        writer);
+    /* Each task has a deadline; see ServletUtil.writeResult(). */
+    async.setTimeout(0);
+    async.addListener(new AsyncListener() {
+
+      @Override
+      public void onComplete(AsyncEvent event) {}
+
+      @Override
+      public void onTimeout(AsyncEvent event) {}
+
+      @Override
+      public void onError(AsyncEvent event) {
+        stream.cancel();
+        ServletUtil.complete(async);
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {}
+    });
+    synchronized (stream) {
+      writer.start(stream.out);
+      stream.submit();
+    }
+  }
+
+  /**
+   * Start streaming the results of {@code size} tasks to a writer, such as
+   * that of a file. The supplied callback is run once the stream ends, either
+   * because all results have been written or because writing failed, but not
+   * if the stream is cancelled.
+   *
+   * @param out to write to
+   * @param context for logging
+   * @param url of the originating request, for logging
+   * @param lane to submit tasks to
+   * @param size the number of tasks
+   * @param tasks that creates the task with the supplied index
+   * @param writer of results
+   * @param onComplete callback
+   */
+  static <T> TaskStream<T> start(
+      PrintWriter out,
+      ServletContext context,
+      String url,
+      Lane lane,
+      int size,
+      IntFunction<? extends TimedTask<T>> tasks,
+      Writer<T> writer,
+      Runnable onComplete) throws IOException {
+
+    TaskStream<T> stream = new TaskStream<>(
+        out,
+        context,
+        MoreExecutors.directExecutor(),
+        onComplete,
+        url,
+        lane,
+        size,
+        tasks,
+        writer);
+    synchronized (stream) {
+      writer.start(out);
+      stream.submit();
+    }
+    return stream;
+  }
+
+  /* Whether the stream was cancelled, or ended because writing failed. */
+  synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  /* Cancel in-flight tasks; no further results are written. */
+  synchronized void cancel() {
+    cancelled = true;
+    for (ListenableFuture<T> future : inFlight) {
+      future.cancel(true);
+    }
+    inFlight.clear();
+  }
+
+  /* Fill the window; caller must hold lock. */
+  private void submit() {
+    while (!cancelled && inFlight.size() < window) {
+      Integer index = retries.poll();
+      if (index == null) {
+        if (next == size) {
+          break;
+        }
+        index = next++;
+      }
+      ListenableFuture<T> future;
+      try {
+        future = ServletUtil.TASK_SCHEDULER.submit(lane, tasks.apply(index));
+      } catch (RejectedExecutionException e) {
+        retries.add(index);
+        if (inFlight.isEmpty()) {
+          /* Nothing to wait for; fails if the scheduler has been shut down. */
+          ServletUtil.TASK_SCHEDULER.schedule(
+              () -> callbackExecutor.execute(this::retry),
+              RETRY_DELAY);
+        }
+        break;
+      }
+      inFlight.add(future);
+      int taskIndex = index;
+      addCallback(future, new FutureCallback<T>() {
+
+        @Override
+        public void onSuccess(T result) {
+          done(future, taskIndex, result, null);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          done(future, taskIndex, null, t);
+        }
+      }, callbackExecutor);
+    }
+    if (!cancelled && inFlight.isEmpty() && retries.isEmpty() && next == size) {
+      onComplete.run();
+    }
+  }
+
+  private synchronized void done(ListenableFuture<T> future, int index, T result, Throwable t) {
+    if (cancelled) {
+      return;
+    }
+    inFlight.remove(future);
+    try {
+      write(index, result, t);
+      submit();
+    } catch (IOException | RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  private synchronized void retry() {
+    if (cancelled) {
+      return;
+    }
+    try {
+      submit();
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  /* End a stream that can not continue; caller must hold lock. */
+  private void fail(Exception e) {
+    context.log(url, e);
+    cancel();
+    onComplete.run();
+  }
+
+  /* Write a result or error and flush so that results reach the client. */
+  private void write(int index, T result, Throwable t) throws IOException {
+    if (t == null) {
+      writer.result(out, index, result);
+    } else {
+      String message = (t instanceof TimeoutException)
+          ? "Calculation did not complete in the time allowed"
+          : (t instanceof CancellationException)
+              ? "Calculation cancelled"
+              : String.valueOf(t.getMessage());
+      writer.error(out, index, message);
+    }
+    out.flush();
+    if (out.checkError()) {
+      throw new IOException("Error writing results");
+    }
+  }
+}
@@ -4,11 +4,16 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.common.base.Splitter;
 
 import gov.usgs.earthquake.nshmp.internal.Parsing;
 import gov.usgs.earthquake.nshmp.internal.Parsing.Delimiter;
@@ -112,7 +117,8 @@ public class Util {
     DISTANCE,
     FORMAT,
     TIMESPAN,
-    BASIN;
+    BASIN,
+    PRECISION;
 
     private String label;
 
@@ -126,12 +132,93 @@ public class Util {
     }
   }
 
+  /* Response formats; see Key.FORMAT. */
+  enum Format {
+    JSON,
+    CSV,
+    CBOR,
+    COMPACT;
+  }
+
+  /**
+   * Returns the response format of a request. An explicit {@code format}
+   * parameter takes precedence; otherwise {@link Format#CBOR} is returned if
+   * the {@code Accept} header lists {@code application/cbor}, and
+   * {@link Format#JSON} if not.
+   * 
+   * @param request servlet request
+   */
+  static Format readFormat(HttpServletRequest request) {
+    String format = request.getParameter(Key.FORMAT.toString());
+    if (format != null) {
+      return Format.valueOf(format.toUpperCase());
+    }
+    return accepts(request, ServletUtil.CBOR_CONTENT_TYPE) ? Format.CBOR : Format.JSON;
+  }
+
+  /* Whether the Accept header lists a media type without a zero quality. */
+  private static boolean accepts(HttpServletRequest request, String mediaType) {
+    Enumeration<String> headers = request.getHeaders("Accept");
+    while (headers != null && headers.hasMoreElements()) {
+      for (String range : Splitter.on(',').trimResults().split(headers.nextElement())) {
+        List<String> parts = Splitter.on(';').trimResults().splitToList(range);
+        if (parts.get(0).equalsIgnoreCase(mediaType) && quality(parts) > 0) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /*
+   * The quality value of a media range split on ';', e.g. 'q=0.5' or 'q = 0',
+   * or 1 if absent; a malformed value is treated as 0.
+   */
+  private static double quality(List<String> parts) {
+    for (String parameter : parts.subList(1, parts.size())) {
+      List<String> pair = Splitter.on('=').trimResults().limit(2).splitToList(parameter);
+      if (pair.size() == 2 && pair.get(0).equalsIgnoreCase("q")) {
+        try {
+          return Double.parseDouble(pair.get(1));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Returns whether a request supplies its calculation parameters as a query
+   * string. The output {@code format} and {@code precision} parameters may
+   * also be appended to a slash-delimited request and are ignored.
+   * 
+   * @param request servlet request
+   */
+  static boolean isQueryRequest(ServletRequest request) {
+    return request.getParameterMap().keySet().stream()
+        .anyMatch(key -> !key.equals(Key.FORMAT.toString()) &&
+            !key.equals(Key.PRECISION.toString()));
+  }
+
   static <T extends Enum<T>> Set<T> readValues(String values, Class<T> type) {
     return Parsing.splitToList(values, Delimiter.COMMA).stream()
         .map((name) -> Enum.valueOf(type, name))
         .collect(Collectors.toSet());
   }
 
+  /*
+   * Distinct numeric values, in order, of one or more comma-delimited strings;
+   * supports parameters that may be repeated or supplied as a list.
+   */
+  static List<Double> readDoubles(String... values) {
+    return Arrays.stream(values)
+        .flatMap(value -> Parsing.splitToList(value, Delimiter.COMMA).stream())
+        .map(Double::valueOf)
+        .distinct()
+        .collect(Collectors.toList());
+  }
+
   static <E extends Enum<E>> String readValue(E key, Map<String, String[]> paramMap) {
     String keyStr = key.toString();
     String[] values = paramMap.get(keyStr);
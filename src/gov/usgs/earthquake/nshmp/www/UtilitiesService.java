@@ -1,16 +1,23 @@
 package gov.usgs.earthquake.nshmp.www;
 
+import static gov.usgs.earthquake.nshmp.www.ServletUtil.MODEL_CACHE_CONTEXT_ID;
+
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+
 import gov.usgs.earthquake.nshmp.geo.json.Feature;
 import gov.usgs.earthquake.nshmp.geo.json.GeoJson;
 import gov.usgs.earthquake.nshmp.geo.json.Properties;
@@ -40,6 +47,9 @@ public class UtilitiesService extends NshmpServlet {
       case "/testsites":
         out.println(proccessTestSites());
         break;
+      case "/cache":
+        out.println(processCacheStats(getServletContext()));
+        break;
       default:
         response.sendRedirect(utilUrl);
     }
@@ -76,6 +86,39 @@ public class UtilitiesService extends NshmpServlet {
     return builder.toJson();
   }
 
+  /* Hit, miss and eviction statistics of result caches. */
+  private static String processCacheStats(ServletContext context) {
+    Map<String, CacheSummary> caches = new LinkedHashMap<>();
+    Cache<?, ?> modelCache = (Cache<?, ?>) context.getAttribute(MODEL_CACHE_CONTEXT_ID);
+    caches.put("model", new CacheSummary(modelCache.size(), modelCache.stats()));
+    caches.put("hazard", new CacheSummary(
+        ServletUtil.HAZARD_CACHE.size(),
+        ServletUtil.HAZARD_CACHE.stats()));
+    caches.put("deaggHazard", new CacheSummary(
+        ServletUtil.DEAGG_HAZARD_CACHE.size(),
+        ServletUtil.DEAGG_HAZARD_CACHE.stats()));
+    return ServletUtil.GSON.toJson(caches);
+  }
+
+  @SuppressWarnings("unused")
+  private static class CacheSummary {
+    private final long size;
+    private final long hits;
+    private final long misses;
+    private final double hitRate;
+    private final long evictions;
+    private final double averageLoadSeconds;
+
+    private CacheSummary(long size, CacheStats stats) {
+      this.size = size;
+      this.hits = stats.hitCount();
+      this.misses = stats.missCount();
+      this.hitRate = stats.hitRate();
+      this.evictions = stats.evictionCount();
+      this.averageLoadSeconds = stats.averageLoadPenalty() / 1e9;
+    }
+  }
+
   private static class Key {
     private static final String TITLE = "title";
     private static final String REGION_ID = "regionId";
@@ -83,6 +83,26 @@ public final class Metadata {
     }
   }
 
+  /**
+   * Return the version of a model, as recorded at build time, or
+   * {@code "unknown"} if no version is available.
+   *
+   * @param id of the model, e.g. {@code "E2014"}
+   */
+  public static String modelVersion(String id) {
+    return Versions.modelVersion(id);
+  }
+
+  /** Returns the version of the nshmp-haz calculation library. */
+  public static String nshmpHazVersion() {
+    return Versions.NSHMP_HAZ_VERSION;
+  }
+
+  /** Returns the version of these web services. */
+  public static String nshmpHazWsVersion() {
+    return Versions.NSHMP_HAZ_WS_VERSION;
+  }
+
   public static Object serverData(int threads, Timer timer) {
     return new Server(threads, timer);
   }
@@ -197,8 +217,8 @@ public final class Metadata {
     DeaggParameters() {
 
       returnPeriod = new DoubleParameter(
-          "Return period (in years)",
-          ParamType.NUMBER,
+          "Return period(s) (in years); may be comma-delimited",
+          ParamType.STRING,
           1.0,
           4000.0);
     }
@@ -1,5 +1,7 @@
 package gov.usgs.earthquake.nshmp.www.meta;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.lang.reflect.Type;
 import java.util.Collection;
 import java.util.List;
@@ -95,13 +97,93 @@ public final class Util {
 
   }
 
-  /* Constrain all doubles to 8 decimal places */
+  /* Constrain all doubles to 8 significant figures */
   public static final class DoubleSerializer implements JsonSerializer<Double> {
     @Override
     public JsonElement serialize(Double d, Type type, JsonSerializationContext context) {
-      double dOut = Double.valueOf(String.format("%.8g", d));
-      return new JsonPrimitive(dOut);
+      return new JsonPrimitive(round(d));
+    }
+  }
+
+  /*
+   * Round to 8 significant figures, as serialized by DoubleSerializer. The
+   * result is identical to Double.valueOf(String.format("%.8g", d)), which
+   * rounds half-up, but is computed arithmetically: the value is scaled by a
+   * power of ten to an 8-digit integer, rounded, and scaled back. Powers of ten
+   * up to 1e22 are exact, so scaling back is a single correctly rounded
+   * operation, as is parsing. Values too close to a rounding tie for the
+   * scaling error to be ignored, and values outside the supported range, fall
+   * back to String.format().
+   */
+  public static double round(double d) {
+    return round(d, SIGNIFICANT_DIGITS);
+  }
+
+  /*
+   * Round to the specified number of significant figures, in the range [1..8];
+   * see round(double).
+   */
+  public static double round(double d, int digits) {
+    checkArgument(
+        digits > 0 && digits <= SIGNIFICANT_DIGITS,
+        "Significant digits [%s] not in range [1..%s]", digits, SIGNIFICANT_DIGITS);
+    if (d == 0.0 || Double.isNaN(d) || Double.isInfinite(d)) {
+      return d;
+    }
+    double a = Math.abs(d);
+    int shift = digits - 1 - (int) Math.floor(Math.log10(a));
+    if (shift < -MAX_POW10 || shift > 2 * MAX_POW10) {
+      return roundFormat(d, digits);
+    }
+    double scaled = scale(a, shift);
+    if (scaled >= POW10[digits]) {
+      scaled = scale(a, --shift);
+    } else if (scaled < POW10[digits - 1]) {
+      scaled = scale(a, ++shift);
+    }
+    double floor = Math.floor(scaled);
+    double fraction = scaled - floor;
+    if (Math.abs(fraction - 0.5) < TIE_TOLERANCE ||
+        shift < -MAX_POW10 || shift > 2 * MAX_POW10) {
+      return roundFormat(d, digits);
+    }
+    long integer = (long) floor + (fraction > 0.5 ? 1 : 0);
+    double rounded;
+    if (shift < 0) {
+      rounded = integer * POW10[-shift];
+    } else if (shift <= MAX_POW10) {
+      rounded = integer / POW10[shift];
+    } else {
+      rounded = Double.parseDouble(integer + "E" + -shift);
     }
+    return Math.copySign(rounded, d);
+  }
+
+  private static final int SIGNIFICANT_DIGITS = 8;
+  private static final int MAX_POW10 = 22;
+  private static final double TIE_TOLERANCE = 1e-6;
+  private static final double[] POW10 = new double[MAX_POW10 + 1];
+
+  static {
+    POW10[0] = 1.0;
+    for (int i = 1; i <= MAX_POW10; i++) {
+      POW10[i] = POW10[i - 1] * 10.0;
+    }
+  }
+
+  /* Scale by 10^shift with at most two rounding errors. */
+  private static double scale(double a, int shift) {
+    if (shift < 0) {
+      return a / POW10[-shift];
+    }
+    if (shift <= MAX_POW10) {
+      return a * POW10[shift];
+    }
+    return a * POW10[MAX_POW10] * POW10[shift - MAX_POW10];
+  }
+
+  private static double roundFormat(double d, int digits) {
+    return Double.valueOf(String.format("%." + digits + "g", d));
   }
 
   /* Serialize param type enum as lowercase */
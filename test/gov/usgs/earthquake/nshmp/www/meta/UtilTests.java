@@ -0,0 +1,100 @@
+package gov.usgs.earthquake.nshmp.www.meta;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class UtilTests {
+
+  private static final long SEED = 0x6e73686d70L;
+  private static final int COUNT = 1_000_000;
+
+  /* Reference implementation replaced by Util.round(). */
+  private static double reference(double d, int digits) {
+    return Double.valueOf(String.format("%." + digits + "g", d));
+  }
+
+  private static void check(double d, int digits) {
+    double expected = reference(d, digits);
+    double actual = Util.round(d, digits);
+    assertEquals(
+        "round(" + d + ", " + digits + ")",
+        Double.doubleToLongBits(expected),
+        Double.doubleToLongBits(actual));
+  }
+
+  @Test
+  public final void testRoundRandomBits() {
+    Random random = new Random(SEED);
+    for (int i = 0; i < COUNT; i++) {
+      double d = Double.longBitsToDouble(random.nextLong());
+      if (Double.isFinite(d)) {
+        check(d, 1 + random.nextInt(8));
+      }
+    }
+  }
+
+  @Test
+  public final void testRoundResponseRange() {
+    /* Typical magnitudes of curve, rate, and deaggregation values. */
+    Random random = new Random(SEED);
+    for (int i = 0; i < COUNT; i++) {
+      double d = Math.pow(10, -20 + 25 * random.nextDouble());
+      check(random.nextBoolean() ? d : -d, 8);
+    }
+  }
+
+  @Test
+  public final void testRoundNearTies() {
+    Random random = new Random(SEED);
+    for (int i = 0; i < COUNT; i++) {
+      int digits = 1 + random.nextInt(8);
+      int min = (int) Math.pow(10, digits - 1);
+      long integer = min + random.nextInt(9 * min);
+      double tie = (integer + 0.5) * Math.pow(10, -30 + random.nextInt(60));
+      double d = tie;
+      for (int ulps = random.nextInt(4); ulps > 0; ulps--) {
+        d = random.nextBoolean() ? Math.nextUp(d) : Math.nextDown(d);
+      }
+      check(d, digits);
+    }
+  }
+
+  @Test
+  public final void testRoundEdgeCases() {
+    double[] values = {
+        0.0,
+        -0.0,
+        Double.MIN_VALUE,
+        Double.MIN_NORMAL,
+        Double.MAX_VALUE,
+        1e-300,
+        1e22,
+        1e23,
+        0.5,
+        0.05,
+        9.99999995,
+        99999999.5,
+        0.1 + 0.2 };
+    for (double value : values) {
+      for (int digits = 1; digits <= 8; digits++) {
+        check(value, digits);
+        check(-value, digits);
+      }
+    }
+    for (int exponent = -320; exponent <= 308; exponent++) {
+      check(Double.parseDouble("1e" + exponent), 8);
+      check(Double.parseDouble("9.99999995e" + exponent), 8);
+    }
+  }
+
+  @Test
+  public final void testRoundNonFinite() {
+    assertEquals(Double.NaN, Util.round(Double.NaN), 0.0);
+    assertEquals(Double.POSITIVE_INFINITY, Util.round(Double.POSITIVE_INFINITY), 0.0);
+    assertEquals(Double.NEGATIVE_INFINITY, Util.round(Double.NEGATIVE_INFINITY), 0.0);
+  }
+}